@@ -0,0 +1,173 @@
+package github.tornaco.permission.requester.android;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.app.ActivityCompat;
+import android.support.v4.app.Fragment;
+import android.support.v4.content.ContextCompat;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import github.tornaco.permission.requester.runtime.MainThread;
+import github.tornaco.permission.requester.runtime.PermissionBackend;
+import github.tornaco.permission.requester.runtime.Permissions;
+import github.tornaco.permission.requester.runtime.RequestScheduler;
+
+/**
+ * The {@link PermissionBackend} of Android, checking with the package manager and requesting
+ * from Activities and Fragments.
+ * <p>
+ * The {@link BackendInstallProvider} of this module installs it when the app starts, unless a
+ * backend is installed already. The generated requesters only know the {@link PermissionBackend}.
+ * <p>
+ * Activities have no public resumed state, so the backend follows their lifecycle through the
+ * Application. An Activity resumed before {@link #install(Context)} counts as resumed from its
+ * next onResume() on.
+ */
+public class AndroidPermissionBackend implements PermissionBackend {
+
+    private static final AndroidPermissionBackend INSTANCE = new AndroidPermissionBackend();
+
+    private static final AtomicBoolean sTracking = new AtomicBoolean();
+    // Only touched on the main thread, by the lifecycle callbacks and the RequestScheduler.
+    private static final Set<Activity> sResumed =
+            Collections.newSetFromMap(new WeakHashMap<Activity, Boolean>());
+
+    private AndroidPermissionBackend() {
+    }
+
+    /**
+     * Install the backend and the main looper of Android, unless they are installed already, and
+     * follow the lifecycle of the Activities of the app.
+     */
+    public static void install(Context context) {
+        Context application = context.getApplicationContext();
+        if (application instanceof Application && sTracking.compareAndSet(false, true)) {
+            ((Application) application).registerActivityLifecycleCallbacks(new ResumedTracker());
+        }
+        Permissions.installIfAbsent(INSTANCE);
+        MainThread.installIfAbsent(Looper.getMainLooper().getThread(), new Executor() {
+            final Handler handler = new Handler(Looper.getMainLooper());
+
+            @Override
+            public void execute(Runnable task) {
+                handler.post(task);
+            }
+        });
+    }
+
+    /**
+     * Several permissions are checked with one call to the package manager, which tells the grant
+     * state of every permission the app requests.
+     */
+    @Override
+    public void check(Object context, String[] permissions, int[] results) {
+        Context c = (Context) context;
+        if (permissions.length > 1 && Build.VERSION.SDK_INT >= 23 && checkBatch(c, permissions, results)) {
+            return;
+        }
+        for (int i = 0; i < permissions.length; i++) {
+            results[i] = ContextCompat.checkSelfPermission(c, permissions[i]);
+        }
+    }
+
+    /**
+     * @return false if the package could not be looked up
+     */
+    private static boolean checkBatch(Context context, String[] permissions, int[] results) {
+        PackageInfo info;
+        try {
+            info = context.getPackageManager().getPackageInfo(context.getPackageName(),
+                    PackageManager.GET_PERMISSIONS);
+        } catch (PackageManager.NameNotFoundException e) {
+            return false;
+        }
+        String[] requested = info.requestedPermissions;
+        int[] flags = info.requestedPermissionsFlags;
+        if (requested == null || flags == null) return false;
+        for (int i = 0; i < permissions.length; i++) {
+            // A permission missing from the manifest is never granted.
+            results[i] = DENIED;
+            for (int r = 0; r < requested.length; r++) {
+                if (permissions[i].equals(requested[r])) {
+                    if ((flags[r] & PackageInfo.REQUESTED_PERMISSION_GRANTED) != 0) results[i] = GRANTED;
+                    break;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Without the lifecycle of the Activities only finishing ones are held back.
+     */
+    @Override
+    public boolean isResumed(Object host) {
+        if (host instanceof Activity) {
+            return sTracking.get() ? sResumed.contains(host) : !((Activity) host).isFinishing();
+        }
+        if (host instanceof Fragment) return ((Fragment) host).isResumed();
+        if (host instanceof android.app.Fragment) return ((android.app.Fragment) host).isResumed();
+        return true;
+    }
+
+    @Override
+    public void request(Object host, String[] permissions, int requestCode) {
+        if (host instanceof Activity) {
+            ActivityCompat.requestPermissions((Activity) host, permissions, requestCode);
+        } else if (host instanceof Fragment) {
+            ((Fragment) host).requestPermissions(permissions, requestCode);
+        } else if (host instanceof android.app.Fragment && Build.VERSION.SDK_INT >= 23) {
+            ((android.app.Fragment) host).requestPermissions(permissions, requestCode);
+        } else {
+            throw new IllegalArgumentException("Can not request permissions from " + host);
+        }
+    }
+
+    private static final class ResumedTracker implements Application.ActivityLifecycleCallbacks {
+
+        @Override
+        public void onActivityResumed(Activity activity) {
+            sResumed.add(activity);
+            // Launch the requests deferred while it was paused.
+            RequestScheduler.onResume();
+        }
+
+        @Override
+        public void onActivityPaused(Activity activity) {
+            sResumed.remove(activity);
+        }
+
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+        }
+
+        @Override
+        public void onActivityStarted(Activity activity) {
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+        }
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+            sResumed.remove(activity);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package github.tornaco.permission.requester.android;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * Installs the {@link AndroidPermissionBackend} when the app starts, before Application.onCreate(),
+ * so apps need no setup code. Merged into the manifest of the app, it provides no content.
+ * <p>
+ * An app that removes it from its manifest calls {@link AndroidPermissionBackend#install(android.content.Context)}
+ * itself.
+ */
+public class BackendInstallProvider extends ContentProvider {
+
+    @Override
+    public boolean onCreate() {
+        AndroidPermissionBackend.install(getContext());
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        return null;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        return null;
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        return 0;
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        return 0;
+    }
+}
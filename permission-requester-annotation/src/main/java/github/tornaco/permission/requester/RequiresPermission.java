@@ -18,6 +18,40 @@ public @interface RequiresPermission {
 
     String methodSubFix() default "Checked";
 
+    /**
+     * Names of the permission groups this method belongs to. For each group the requester gets a
+     * {@code request<Group>(host)} method, asking for the permissions of all of its methods at once.
+     */
+    String[] groups() default {};
+
+    /**
+     * Where the method runs once the permissions are granted.
+     */
+    RunOn runOn() default RunOn.INLINE;
+
+    enum RunOn {
+        /**
+         * On the calling thread if granted already, else on the main thread with the result.
+         */
+        INLINE,
+        /**
+         * Always on the main thread.
+         */
+        MAIN,
+        /**
+         * On the shared background pool of GrantExecutors.
+         */
+        BACKGROUND,
+        /**
+         * On a virtual thread of its own where the JVM supports them, else like BACKGROUND.
+         */
+        VIRTUAL,
+        /**
+         * On the executor set with GrantExecutors.setCustom().
+         */
+        CUSTOM
+    }
+
     @interface Before {
         String value();
     }
@@ -25,4 +59,12 @@ public @interface RequiresPermission {
     @interface OnDenied {
         String value();
     }
+
+    /**
+     * Method called with {@code (String[] granted, String[] denied)} when only some of the
+     * permissions are granted. Without it such results go to the {@link OnDenied} method.
+     */
+    @interface OnPartiallyGranted {
+        String value();
+    }
 }
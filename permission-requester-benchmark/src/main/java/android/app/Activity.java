@@ -0,0 +1,9 @@
+package android.app;
+
+import android.content.Context;
+
+/**
+ * Stub of the framework class, only for the generated code to compile against.
+ */
+public class Activity extends Context {
+}
@@ -0,0 +1,11 @@
+package android.app;
+
+/**
+ * Stub of the framework class, only for the generated code to compile against.
+ */
+public class Fragment {
+
+    public Activity getActivity() {
+        return null;
+    }
+}
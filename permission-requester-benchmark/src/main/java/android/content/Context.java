@@ -0,0 +1,7 @@
+package android.content;
+
+/**
+ * Stub of the framework class, only for the generated code to compile against.
+ */
+public class Context {
+}
@@ -0,0 +1,13 @@
+package android.support.v4.app;
+
+import android.app.Activity;
+
+/**
+ * Stub of the support library class, only for the generated code to compile against.
+ */
+public class Fragment {
+
+    public Activity getActivity() {
+        return null;
+    }
+}
@@ -0,0 +1,110 @@
+package github.tornaco.permission.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+
+/**
+ * Keeps class files and generated sources in memory, so the benchmark does not measure the disk.
+ * Generated sources are compiled in the next round, so they have to be readable back.
+ */
+class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+
+    private final Map<String, MemoryFile> generatedSources = new HashMap<>();
+    private long outputBytes;
+
+    MemoryFileManager(StandardJavaFileManager fileManager) {
+        super(fileManager);
+    }
+
+    long getOutputBytes() {
+        return outputBytes;
+    }
+
+    int getGeneratedSourceCount() {
+        return generatedSources.size();
+    }
+
+    @Override
+    public JavaFileObject getJavaFileForOutput(Location location, String className,
+                                               JavaFileObject.Kind kind, FileObject sibling) {
+        MemoryFile file = new MemoryFile(className, kind);
+        if (location == StandardLocation.SOURCE_OUTPUT) {
+            generatedSources.put(className, file);
+        }
+        return file;
+    }
+
+    @Override
+    public Iterable<JavaFileObject> list(Location location, String packageName,
+                                         Set<JavaFileObject.Kind> kinds,
+                                         boolean recurse) throws IOException {
+        // Nothing is ever read back from the output locations.
+        if (location == StandardLocation.SOURCE_OUTPUT || location == StandardLocation.CLASS_OUTPUT) {
+            return Collections.emptyList();
+        }
+        return super.list(location, packageName, kinds, recurse);
+    }
+
+    @Override
+    public String inferBinaryName(Location location, JavaFileObject file) {
+        if (file instanceof MemoryFile) return ((MemoryFile) file).className;
+        return super.inferBinaryName(location, file);
+    }
+
+    @Override
+    public boolean isSameFile(FileObject a, FileObject b) {
+        if (a instanceof MemoryFile || b instanceof MemoryFile) return a == b;
+        return super.isSameFile(a, b);
+    }
+
+    private class MemoryFile extends SimpleJavaFileObject {
+        private final String className;
+        private ByteArrayOutputStream bytes;
+        private StringWriter chars;
+
+        MemoryFile(String className, Kind kind) {
+            super(URI.create("mem:///" + className.replace('.', '/') + kind.extension), kind);
+            this.className = className;
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return bytes = new ByteArrayOutputStream() {
+                @Override
+                public void close() {
+                    outputBytes += size();
+                }
+            };
+        }
+
+        @Override
+        public Writer openWriter() {
+            return chars = new StringWriter() {
+                @Override
+                public void close() {
+                    outputBytes += getBuffer().length();
+                }
+            };
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return chars != null ? chars.getBuffer() : bytes.toString();
+        }
+    }
+}
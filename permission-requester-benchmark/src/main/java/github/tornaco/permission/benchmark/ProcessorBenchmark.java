@@ -0,0 +1,201 @@
+package github.tornaco.permission.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.ToolProvider;
+
+import github.tornaco.permission.compiler.RuntimePermissionsCompiler;
+
+/**
+ * Runs the real {@link RuntimePermissionsCompiler} through an in-process javac on synthetic
+ * sources, with stub Android classes on the classpath, and reports for every configuration of
+ * N hosts x M methods x K permissions:
+ * <ul>
+ * <li>wall: the whole compilation, including compiling the generated sources</li>
+ * <li>process: the time spent inside process()</li>
+ * <li>alloc: bytes allocated by the javac thread for the whole compilation, and inside process().
+ * Threads rendering in parallel are not counted, pass --parallelism 1 to include that work</li>
+ * </ul>
+ * Each value is the median of the measured iterations.
+ * <p>
+ * Usage: {@code [--hosts 10,100,1000] [--methods 1,10] [--permissions 1,4] [--warmup 3]
+ * [--iterations 5] [--parallelism n] [--dispatch closure|switch] [--async] [--verify]}
+ */
+public class ProcessorBenchmark {
+
+    private int[] hosts = {10, 100, 1000};
+    private int[] methods = {1, 10};
+    private int[] permissions = {1, 4};
+    private int warmup = 3;
+    private int iterations = 5;
+    private String parallelism;
+    private String dispatch;
+    private boolean async;
+    private boolean verify;
+
+    public static void main(String[] args) throws Exception {
+        ProcessorBenchmark benchmark = new ProcessorBenchmark();
+        benchmark.parse(args);
+        benchmark.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--hosts":
+                    hosts = ints(args[++i]);
+                    break;
+                case "--methods":
+                    methods = ints(args[++i]);
+                    break;
+                case "--permissions":
+                    permissions = ints(args[++i]);
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(args[++i]);
+                    break;
+                case "--iterations":
+                    iterations = Integer.parseInt(args[++i]);
+                    break;
+                case "--parallelism":
+                    parallelism = args[++i];
+                    break;
+                case "--dispatch":
+                    dispatch = args[++i];
+                    break;
+                case "--async":
+                    async = true;
+                    break;
+                case "--verify":
+                    verify = true;
+                    break;
+                default:
+                    if (arg.length() > 0) throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+        if (iterations < 1) throw new IllegalArgumentException("--iterations should be at least 1");
+    }
+
+    private static int[] ints(String value) {
+        String[] parts = value.split(",");
+        int[] ints = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            ints[i] = Integer.parseInt(parts[i].trim());
+        }
+        return ints;
+    }
+
+    private void run() throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("No system Java compiler, run the benchmark with a JDK");
+        }
+        System.out.println(String.format(Locale.US, "%6s %6s %6s %10s %10s %12s %12s %10s",
+                "hosts", "methods", "perms", "wall ms", "process ms", "alloc MB", "proc alloc MB", "files"));
+        for (int n : hosts) {
+            for (int m : methods) {
+                for (int k : permissions) {
+                    List<JavaFileObject> sources = SyntheticSources.create(n, m, k);
+                    for (int i = 0; i < warmup; i++) {
+                        compile(compiler, sources);
+                    }
+                    List<Result> results = new ArrayList<>(iterations);
+                    for (int i = 0; i < iterations; i++) {
+                        results.add(compile(compiler, sources));
+                    }
+                    Result median = Result.median(results);
+                    System.out.println(String.format(Locale.US, "%6d %6d %6d %10.1f %10.1f %12.1f %12.1f %10d",
+                            n, m, k,
+                            median.wallNanos / 1e6, median.processNanos / 1e6,
+                            median.allocatedBytes / 1048576d, median.processAllocatedBytes / 1048576d,
+                            median.generatedFiles));
+                }
+            }
+        }
+    }
+
+    private Result compile(JavaCompiler compiler, List<JavaFileObject> sources) throws Exception {
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        MemoryFileManager fileManager = new MemoryFileManager(
+                compiler.getStandardFileManager(diagnostics, Locale.US, null));
+        List<String> options = new ArrayList<>(Arrays.asList(
+                "-classpath", System.getProperty("java.class.path"),
+                "-nowarn"));
+        if (parallelism != null) options.add("-ApermissionRequester.parallelism=" + parallelism);
+        if (dispatch != null) options.add("-ApermissionRequester.dispatch=" + dispatch);
+        if (async) options.add("-ApermissionRequester.async=true");
+        if (verify) options.add("-ApermissionRequester.verifyFormatting=true");
+
+        TimingProcessor processor = new TimingProcessor(new RuntimePermissionsCompiler());
+        JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics, options, null, sources);
+        task.setProcessors(Collections.singletonList(processor));
+
+        long allocated = TimingProcessor.allocatedBytes();
+        long start = System.nanoTime();
+        boolean success = task.call();
+        long wall = System.nanoTime() - start;
+        allocated = TimingProcessor.allocatedBytes() - allocated;
+        fileManager.close();
+
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR || diagnostic.getKind() == Diagnostic.Kind.WARNING) {
+                System.err.println(diagnostic);
+            }
+        }
+        if (!success) throw new IllegalStateException("Compilation failed");
+
+        return new Result(wall, processor.getProcessNanos(), allocated,
+                processor.getProcessAllocatedBytes(), fileManager.getGeneratedSourceCount());
+    }
+
+    private static class Result {
+        final long wallNanos;
+        final long processNanos;
+        final long allocatedBytes;
+        final long processAllocatedBytes;
+        final int generatedFiles;
+
+        Result(long wallNanos, long processNanos, long allocatedBytes, long processAllocatedBytes,
+               int generatedFiles) {
+            this.wallNanos = wallNanos;
+            this.processNanos = processNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.processAllocatedBytes = processAllocatedBytes;
+            this.generatedFiles = generatedFiles;
+        }
+
+        /**
+         * @return the median of every value on its own
+         */
+        static Result median(List<Result> results) {
+            int size = results.size();
+            long[] wall = new long[size];
+            long[] process = new long[size];
+            long[] allocated = new long[size];
+            long[] processAllocated = new long[size];
+            for (int i = 0; i < size; i++) {
+                Result r = results.get(i);
+                wall[i] = r.wallNanos;
+                process[i] = r.processNanos;
+                allocated[i] = r.allocatedBytes;
+                processAllocated[i] = r.processAllocatedBytes;
+            }
+            return new Result(median(wall), median(process), median(allocated), median(processAllocated),
+                    results.get(0).generatedFiles);
+        }
+
+        private static long median(long[] values) {
+            Arrays.sort(values);
+            return values[values.length / 2];
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package github.tornaco.permission.benchmark;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+
+/**
+ * Generates N hosts with M @RequiresPermission methods of K permissions each. Hosts are spread
+ * over a few packages and alternate between Activity, platform Fragment and support Fragment,
+ * the Activities extending a shared base class.
+ */
+class SyntheticSources {
+
+    private static final int PACKAGES = 10;
+
+    private static final String[] SUPERCLASSES = {
+            "bench.BaseActivity", "android.app.Fragment", "android.support.v4.app.Fragment"
+    };
+
+    static List<JavaFileObject> create(int hosts, int methods, int permissions) {
+        List<JavaFileObject> sources = new ArrayList<>(hosts + 1);
+        sources.add(source("bench.BaseActivity",
+                "package bench;\n\npublic class BaseActivity extends android.app.Activity {\n}\n"));
+        for (int i = 0; i < hosts; i++) {
+            String pkg = "bench.p" + (i % PACKAGES);
+            String name = "Host" + i;
+            StringBuilder sb = new StringBuilder(256 + methods * (128 + permissions * 32));
+            sb.append("package ").append(pkg).append(";\n\n")
+                    .append("import github.tornaco.permission.requester.RequiresPermission;\n")
+                    .append("import github.tornaco.permission.requester.RuntimePermissions;\n\n")
+                    .append("@RuntimePermissions\n")
+                    .append("public class ").append(name)
+                    .append(" extends ").append(SUPERCLASSES[i % SUPERCLASSES.length]).append(" {\n");
+            for (int j = 0; j < methods; j++) {
+                sb.append("\n    @RequiresPermission.Before(\"before\")\n")
+                        .append("    @RequiresPermission({");
+                for (int k = 0; k < permissions; k++) {
+                    if (k != 0) sb.append(", ");
+                    // Overlapping sets, as in real apps.
+                    sb.append("\"android.permission.P").append((j + k) % (permissions * 2)).append('"');
+                }
+                sb.append("})\n")
+                        .append("    @RequiresPermission.OnDenied(\"denied\")\n")
+                        .append("    public void method").append(j)
+                        .append("(String a, int b, java.util.List<String> c) {\n    }\n");
+            }
+            sb.append("\n    public void before() {\n    }\n")
+                    .append("\n    public void denied() {\n    }\n")
+                    .append("}\n");
+            sources.add(source(pkg + "." + name, sb.toString()));
+        }
+        return sources;
+    }
+
+    private static JavaFileObject source(String className, final String content) {
+        URI uri = URI.create("string:///" + className.replace('.', '/') + JavaFileObject.Kind.SOURCE.extension);
+        return new SimpleJavaFileObject(uri, JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return content;
+            }
+        };
+    }
+}
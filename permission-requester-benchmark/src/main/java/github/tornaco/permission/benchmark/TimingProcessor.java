@@ -0,0 +1,87 @@
+package github.tornaco.permission.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+
+import javax.annotation.processing.Completion;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+
+/**
+ * Measures the time and the allocation of the calling thread spent inside
+ * {@link Processor#process(Set, RoundEnvironment)} of the delegate.
+ */
+class TimingProcessor implements Processor {
+
+    private final Processor delegate;
+
+    private long processNanos;
+    private long processAllocatedBytes;
+
+    TimingProcessor(Processor delegate) {
+        this.delegate = delegate;
+    }
+
+    long getProcessNanos() {
+        return processNanos;
+    }
+
+    long getProcessAllocatedBytes() {
+        return processAllocatedBytes;
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        try {
+            return delegate.process(annotations, roundEnv);
+        } finally {
+            processNanos += System.nanoTime() - start;
+            processAllocatedBytes += allocatedBytes() - allocated;
+        }
+    }
+
+    /**
+     * @return bytes allocated by the current thread so far, or 0 if the JVM can not tell
+     */
+    static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    @Override
+    public Set<String> getSupportedOptions() {
+        return delegate.getSupportedOptions();
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return delegate.getSupportedAnnotationTypes();
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return delegate.getSupportedSourceVersion();
+    }
+
+    @Override
+    public void init(ProcessingEnvironment processingEnv) {
+        delegate.init(processingEnv);
+    }
+
+    @Override
+    public Iterable<? extends Completion> getCompletions(Element element, AnnotationMirror annotation,
+                                                         ExecutableElement member, String userText) {
+        return delegate.getCompletions(element, annotation, member, userText);
+    }
+}
@@ -0,0 +1,45 @@
+package github.tornaco.permission.compiler;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * How a generated requester gets from a permission result back to the host method.
+ */
+enum Dispatch {
+    /**
+     * Each request that is not granted yet puts a PendingRequest capturing host and arguments.
+     */
+    CLOSURE,
+    /**
+     * The arguments of a request are kept in static fields reused by every request of the method,
+     * and onRequestPermissionsResult calls the host through a switch on the request code. No
+     * PendingRequest per request, only the WeakReference of the host. One request of each method
+     * is kept in the fields, a call while it waits, or while a group asks for its permissions,
+     * waits for that result in a PendingRequest like with {@link #CLOSURE}. The fields are bounded
+     * by the number of methods, the host is held weakly, and the arguments of requests that
+     * outlived the time to live of the PendingRequests are released by the next call or result of
+     * the requester.
+     */
+    SWITCH;
+
+    static final String OPTION_DISPATCH = "permissionRequester.dispatch";
+
+    /**
+     * Parse the dispatch from the processor options.
+     *
+     * @param options processor options
+     * @return the dispatch, {@link #CLOSURE} if not set
+     * @throws IllegalArgumentException if the option is not a valid dispatch
+     */
+    static Dispatch parse(Map<String, String> options) {
+        String value = options.get(OPTION_DISPATCH);
+        if (value == null || value.trim().length() == 0) return CLOSURE;
+        try {
+            return valueOf(value.trim().toUpperCase(Locale.US));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Illegal value for " + OPTION_DISPATCH + ": " + value
+                    + ", should be closure or switch");
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package github.tornaco.permission.compiler;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * A permission group of a {@link HostModel}, see RequiresPermission#groups().
+ */
+final class GroupModel {
+    final String name;
+    /**
+     * Name of the generated method, request with the capitalized name.
+     */
+    final String methodName;
+    /**
+     * Permissions of all methods of the group, in the order of their first use.
+     */
+    final ImmutableList<String> permissions;
+    final int requestCode;
+
+    GroupModel(String name, String methodName, ImmutableList<String> permissions, int requestCode) {
+        this.name = name;
+        this.methodName = methodName;
+        this.permissions = permissions;
+        this.requestCode = requestCode;
+    }
+}
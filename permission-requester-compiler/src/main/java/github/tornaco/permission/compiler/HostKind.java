@@ -0,0 +1,34 @@
+package github.tornaco.permission.compiler;
+
+/**
+ * What a @RuntimePermissions host is, which decides the Context the generated code checks
+ * permissions with. Whether a host may request them now is up to the PermissionBackend.
+ */
+enum HostKind {
+    ACTIVITY("android.app.Activity", "host"),
+    FRAGMENT("android.app.Fragment", "host.getActivity()"),
+    SUPPORT_FRAGMENT("android.support.v4.app.Fragment", "host.getActivity()"),
+    UNSUPPORTED(null, null),
+    /**
+     * A superclass is not resolved yet, it may be generated by another processor in a later round.
+     */
+    UNRESOLVED(null, null);
+
+    /**
+     * Qualified name of the framework class that makes a host this kind.
+     */
+    final String baseClassName;
+    /**
+     * Expression of the Context to check permissions with.
+     */
+    final String contextExpression;
+
+    HostKind(String baseClassName, String contextExpression) {
+        this.baseClassName = baseClassName;
+        this.contextExpression = contextExpression;
+    }
+
+    boolean isSupported() {
+        return this != UNSUPPORTED && this != UNRESOLVED;
+    }
+}
@@ -0,0 +1,64 @@
+package github.tornaco.permission.compiler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.lang.model.element.Name;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+
+/**
+ * Resolves the {@link HostKind} of types and remembers it for every type on the way, so hosts
+ * sharing base classes only walk the part of the hierarchy that was not seen before.
+ * <p>
+ * Elements are only valid within one processing round, so use a new cache for each round.
+ */
+class HostKindCache {
+
+    private final Map<TypeElement, HostKind> kinds = new HashMap<>();
+
+    HostKind kindOf(TypeElement type) {
+        HostKind kind = kinds.get(type);
+        if (kind != null) return kind;
+
+        // Walk up until a type of known kind, then share the result with the whole chain.
+        List<TypeElement> chain = new ArrayList<>();
+        TypeElement current = type;
+        while (true) {
+            kind = kinds.get(current);
+            if (kind != null) break;
+            chain.add(current);
+            kind = baseKindOf(current.getQualifiedName());
+            if (kind != null) break;
+            TypeMirror superclass = current.getSuperclass();
+            if (superclass.getKind() == TypeKind.ERROR) {
+                kind = HostKind.UNRESOLVED;
+                break;
+            }
+            if (superclass.getKind() != TypeKind.DECLARED) {
+                // Reached Object.
+                kind = HostKind.UNSUPPORTED;
+                break;
+            }
+            current = (TypeElement) ((DeclaredType) superclass).asElement();
+        }
+
+        for (TypeElement t : chain) {
+            kinds.put(t, kind);
+        }
+        return kind;
+    }
+
+    private static HostKind baseKindOf(Name qualifiedName) {
+        for (HostKind kind : HostKind.values()) {
+            if (kind.baseClassName != null && qualifiedName.contentEquals(kind.baseClassName)) {
+                return kind;
+            }
+        }
+        return null;
+    }
+}
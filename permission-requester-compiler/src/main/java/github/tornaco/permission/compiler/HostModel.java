@@ -0,0 +1,46 @@
+package github.tornaco.permission.compiler;
+
+import com.google.common.collect.ImmutableList;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.TypeVariableName;
+
+/**
+ * Everything needed to generate the requester of one @RuntimePermissions host, copied out of the
+ * Elements on the javac thread so that it can be rendered on any thread.
+ */
+final class HostModel {
+    /**
+     * Package of both the host and the generated class.
+     */
+    final String packageName;
+    /**
+     * Simple name of the generated class.
+     */
+    final String className;
+    final ClassName hostClassName;
+    /**
+     * Binary name of the host, as returned by {@link Class#getName()}.
+     */
+    final String hostBinaryName;
+    final ImmutableList<TypeVariableName> typeVariables;
+    final HostKind kind;
+    final ImmutableList<MethodModel> methods;
+    final ImmutableList<GroupModel> groups;
+
+    HostModel(String packageName, String className, ClassName hostClassName, String hostBinaryName,
+              ImmutableList<TypeVariableName> typeVariables, HostKind kind,
+              ImmutableList<MethodModel> methods, ImmutableList<GroupModel> groups) {
+        this.packageName = packageName;
+        this.className = className;
+        this.hostClassName = hostClassName;
+        this.hostBinaryName = hostBinaryName;
+        this.typeVariables = typeVariables;
+        this.kind = kind;
+        this.methods = methods;
+        this.groups = groups;
+    }
+
+    String qualifiedClassName() {
+        return packageName.isEmpty() ? className : packageName + "." + className;
+    }
+}
@@ -0,0 +1,54 @@
+package github.tornaco.permission.compiler;
+
+import com.google.common.collect.ImmutableList;
+import com.squareup.javapoet.ParameterSpec;
+import com.squareup.javapoet.TypeName;
+
+import github.tornaco.permission.requester.RequiresPermission;
+
+/**
+ * A @RequiresPermission method of a {@link HostModel}.
+ */
+final class MethodModel {
+    /**
+     * Name of the annotated method.
+     */
+    final String name;
+    /**
+     * Name of the generated method, the name with the methodSubFix.
+     */
+    final String checkedName;
+    final ImmutableList<ParameterSpec> parameters;
+    final ImmutableList<String> permissions;
+    final int requestCode;
+    /**
+     * Name of the @RequiresPermission.Before method, or null.
+     */
+    final String beforeMethod;
+    /**
+     * Name of the @RequiresPermission.OnDenied method, or null.
+     */
+    final String onDeniedMethod;
+    /**
+     * Name of the @RequiresPermission.OnPartiallyGranted method, or null.
+     */
+    final String onPartiallyGrantedMethod;
+    final RequiresPermission.RunOn runOn;
+    final TypeName returnType;
+
+    MethodModel(String name, String checkedName, ImmutableList<ParameterSpec> parameters,
+                ImmutableList<String> permissions, int requestCode,
+                String beforeMethod, String onDeniedMethod, String onPartiallyGrantedMethod,
+                RequiresPermission.RunOn runOn, TypeName returnType) {
+        this.name = name;
+        this.checkedName = checkedName;
+        this.parameters = parameters;
+        this.permissions = permissions;
+        this.requestCode = requestCode;
+        this.beforeMethod = beforeMethod;
+        this.onDeniedMethod = onDeniedMethod;
+        this.onPartiallyGrantedMethod = onPartiallyGrantedMethod;
+        this.runOn = runOn;
+        this.returnType = returnType;
+    }
+}
@@ -22,7 +22,115 @@ package github.tornaco.permission.compiler;
  * @author emcmanus@google.com (Éamonn McManus)
  */
 class Reformatter {
+
+    /**
+     * Reformat the source in a single pass over its {@link JavaScanner} tokens. The output is the
+     * same as running {@link #fixupThreePass(String)}, which is kept to test this against.
+     */
     static String fixup(String s) {
+        if (!s.endsWith("\n")) {
+            s += '\n';
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        JavaScanner tokenizer = new JavaScanner(s);
+        // Counted over everything like compressBlankLines does, literals and comments included.
+        int[] depth = new int[2];
+        int len = s.length();
+        int end;
+        for (int start = 0; start < len; start = end) {
+            end = tokenizer.tokenEnd(start);
+            char c = s.charAt(start);
+            if (c == '\n') {
+                // A newline token followed by another one means a blank line, collect the run.
+                int newlines = 1;
+                while (end < len && s.charAt(end) == '\n') {
+                    start = end;
+                    end = tokenizer.tokenEnd(start);
+                    newlines++;
+                }
+                if (newlines > 1 && depth[0] == 0 && depth[1] <= 1) {
+                    sb.append('\n');
+                }
+                // The newline and the indentation of the next line.
+                sb.append(s, start, end);
+            } else if (c == ' ') {
+                if (s.charAt(end) == '\n') {
+                    // Trailing space, or the whole first line.
+                    continue;
+                } else if (start == 0) {
+                    // Indentation of the first line.
+                    sb.append(s, start, end);
+                } else if (sb.charAt(sb.length() - 1) == '(') {
+                    continue;
+                } else if (".,;)".indexOf(s.charAt(end)) < 0) {
+                    sb.append(' ');
+                }
+            } else {
+                appendToken(s, start, end, sb, depth);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void appendToken(String s, int start, int end, StringBuilder sb, int[] depth) {
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '(':
+                    depth[0]++;
+                    break;
+                case ')':
+                    depth[0]--;
+                    break;
+                case '{':
+                    depth[1]++;
+                    break;
+                case '}':
+                    depth[1]--;
+                    break;
+                case '\n':
+                    // Only block comments and literals span lines, apply the line rules inside them.
+                    stripTrailingSpace(sb);
+                    int newlines = 1;
+                    int j = i + 1;
+                    while (true) {
+                        int k = j;
+                        while (k < end && s.charAt(k) == ' ') {
+                            k++;
+                        }
+                        if (k < end && s.charAt(k) == '\n') {
+                            newlines++;
+                            j = k + 1;
+                        } else {
+                            break;
+                        }
+                    }
+                    if (newlines > 1 && depth[0] == 0 && depth[1] <= 1) {
+                        sb.append('\n');
+                    }
+                    i = j - 1;
+                    break;
+            }
+            sb.append(c);
+        }
+        if (end < s.length() && s.charAt(end) == '\n') {
+            // A line comment runs up to the newline, including trailing space.
+            stripTrailingSpace(sb);
+        }
+    }
+
+    private static void stripTrailingSpace(StringBuilder sb) {
+        int length = sb.length();
+        while (length > 0 && sb.charAt(length - 1) == ' ') {
+            length--;
+        }
+        sb.setLength(length);
+    }
+
+    /**
+     * The original three passes, slower as each one copies the whole source.
+     */
+    static String fixupThreePass(String s) {
         s = removeTrailingSpace(s);
         s = compressBlankLines(s);
         s = compressSpace(s);
@@ -0,0 +1,242 @@
+package github.tornaco.permission.compiler;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Streaming counterpart of {@link Reformatter#fixup(String)}: reformats the source as it is
+ * written and passes it on to the underlying writer line by line, so only the current line is
+ * ever held in memory.
+ * <p>
+ * The output is the same as the three passes of the Reformatter. Trailing space is stripped when
+ * a line is complete, runs of blank lines are held back until the next non blank line decides
+ * whether one of them is kept, and extra spaces are compressed with the same tokenization as
+ * {@link JavaScanner}, carrying block comments and literals over line ends.
+ */
+class ReformattingWriter extends Writer {
+
+    private static final int CODE = 0;
+    private static final int BLOCK_COMMENT = 1;
+    private static final int QUOTE = 2;
+
+    private final Writer out;
+
+    // The current line, without its newline.
+    private final StringBuilder line = new StringBuilder(128);
+    // The reformatted current line.
+    private final StringBuilder formatted = new StringBuilder(128);
+
+    // Newlines seen since the last non blank line, not yet written.
+    private int pendingNewlines;
+    private boolean firstLine = true;
+    private boolean closed;
+
+    // Counted over the whole text like Reformatter.compressBlankLines does, literals included.
+    private int parens;
+    private int braces;
+
+    // Token that is still open at the end of the previous line.
+    private int state = CODE;
+    private char quote;
+    private char lastOut;
+
+    ReformattingWriter(Writer out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        append((char) c);
+    }
+
+    @Override
+    public void write(char[] chars, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) {
+            append(chars[i]);
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) {
+            append(str.charAt(i));
+        }
+    }
+
+    @Override
+    public Writer append(CharSequence csq) throws IOException {
+        if (csq == null) csq = "null";
+        for (int i = 0; i < csq.length(); i++) {
+            append(csq.charAt(i));
+        }
+        return this;
+    }
+
+    @Override
+    public Writer append(char c) throws IOException {
+        if (closed) throw new IOException("Writer closed");
+        if (c == '\n') {
+            endLine();
+        } else {
+            line.append(c);
+        }
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // Pending lines may still change, only flush what is written already.
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        // The Reformatter makes sure the text ends with a newline.
+        if (line.length() > 0 || firstLine) {
+            endLine();
+        }
+        writePendingNewlines();
+        closed = true;
+        out.close();
+    }
+
+    private void endLine() throws IOException {
+        // Trailing space.
+        int end = line.length();
+        while (end > 0 && line.charAt(end - 1) == ' ') {
+            end--;
+        }
+        line.setLength(end);
+
+        if (end == 0 && !firstLine) {
+            // Blank line, decided on when the run ends.
+            pendingNewlines++;
+            return;
+        }
+
+        writePendingNewlines();
+        formatLine();
+        out.append(formatted);
+        for (int i = 0; i < end; i++) {
+            switch (line.charAt(i)) {
+                case '(':
+                    parens++;
+                    break;
+                case ')':
+                    parens--;
+                    break;
+                case '{':
+                    braces++;
+                    break;
+                case '}':
+                    braces--;
+                    break;
+            }
+        }
+        line.setLength(0);
+        firstLine = false;
+        pendingNewlines = 1;
+    }
+
+    private void writePendingNewlines() throws IOException {
+        if (pendingNewlines == 0) return;
+        // Keep one blank line of a run, unless inside parentheses or a method.
+        if (pendingNewlines > 1 && parens == 0 && braces <= 1) {
+            out.append('\n');
+        }
+        out.append('\n');
+        lastOut = '\n';
+        pendingNewlines = 0;
+    }
+
+    private void formatLine() {
+        StringBuilder s = line;
+        StringBuilder sb = formatted;
+        sb.setLength(0);
+        int len = s.length();
+        int i = 0;
+
+        // Continue a token left open by the previous line.
+        if (state == BLOCK_COMMENT) {
+            i = blockCommentEnd(0);
+        } else if (state == QUOTE) {
+            i = quoteEnd(0);
+        } else {
+            // Indentation belongs to the newline token, which is kept as it is.
+            while (i < len && s.charAt(i) == ' ') {
+                i++;
+            }
+        }
+        sb.append(s, 0, i);
+
+        while (i < len) {
+            char c = s.charAt(i);
+            int end;
+            if (c == ' ') {
+                end = i + 1;
+                while (end < len && s.charAt(end) == ' ') {
+                    end++;
+                }
+                // Trailing space is stripped, so there is always a character after the run.
+                char prev = sb.length() > 0 ? sb.charAt(sb.length() - 1) : lastOut;
+                if (prev != '(' && ".,;)".indexOf(s.charAt(end)) < 0) {
+                    sb.append(' ');
+                }
+                i = end;
+                continue;
+            }
+            if (c == '/' && i + 1 < len && s.charAt(i + 1) == '*') {
+                state = BLOCK_COMMENT;
+                end = blockCommentEnd(i + 2);
+            } else if (c == '/' && i + 1 < len && s.charAt(i + 1) == '/') {
+                end = len;
+            } else if (c == '\'' || c == '"' || c == '`') {
+                state = QUOTE;
+                quote = c;
+                end = quoteEnd(i + 1);
+            } else {
+                end = i + 1;
+            }
+            sb.append(s, i, end);
+            i = end;
+        }
+        if (sb.length() > 0) {
+            lastOut = sb.charAt(sb.length() - 1);
+        }
+    }
+
+    /**
+     * @return the end of the block comment searched from {@code from}, or the end of the line if
+     * the comment goes on
+     */
+    private int blockCommentEnd(int from) {
+        int len = line.length();
+        for (int i = from; i + 1 < len; i++) {
+            if (line.charAt(i) == '*' && line.charAt(i + 1) == '/') {
+                state = CODE;
+                return i + 2;
+            }
+        }
+        return len;
+    }
+
+    /**
+     * @return the end of the literal searched from {@code from}, or the end of the line if the
+     * literal goes on
+     */
+    private int quoteEnd(int from) {
+        int len = line.length();
+        for (int i = from; i < len; i++) {
+            char c = line.charAt(i);
+            if (c == '\\') {
+                // A backslash at the end of the line escapes the newline.
+                i++;
+            } else if (c == quote) {
+                state = CODE;
+                return i + 1;
+            }
+        }
+        return len;
+    }
+}
@@ -0,0 +1,351 @@
+package github.tornaco.permission.compiler;
+
+import com.squareup.javapoet.ArrayTypeName;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.JavaFile;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.TypeName;
+import com.squareup.javapoet.TypeSpec;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.lang.model.element.Modifier;
+
+import github.tornaco.permission.compiler.common.SettingsProvider;
+
+/**
+ * Renders the module wide registry of all @RequiresPermission methods, see
+ * {@link RuntimePermissionsCompiler#OPTION_REGISTRY}.
+ * <p>
+ * Entries are kept in parallel constant arrays, sorted by host and then in declaration order, so
+ * the methods of a host are consecutive. The open addressing tables for the lookup by request code
+ * and by host are filled here, at compile time, with the same {@link #slot(int, int)} function
+ * the generated class probes them with.
+ * <p>
+ * The registry also routes permission results to the requesters. Every request code, of methods
+ * and groups, is mapped to a route through another such table, and a switch on the dense route
+ * numbers calls the dispatch method of the requesters owning the code, without reflection.
+ */
+class RegistryGenerator {
+
+    private static final TypeName STRING_ARRAY = ArrayTypeName.of(String.class);
+
+    private RegistryGenerator() {
+    }
+
+    /**
+     * @param registryName name of the registry class
+     * @param hosts        hosts sorted by {@link HostModel#hostBinaryName}
+     */
+    static JavaFile generate(ClassName registryName, List<HostModel> hosts) {
+        List<HostModel> entryHosts = new ArrayList<>();
+        List<MethodModel> entryMethods = new ArrayList<>();
+        for (HostModel host : hosts) {
+            for (MethodModel method : host.methods) {
+                entryHosts.add(host);
+                entryMethods.add(method);
+            }
+        }
+        int size = entryMethods.size();
+
+        CodeBlock.Builder hostNames = CodeBlock.builder();
+        CodeBlock.Builder methodNames = CodeBlock.builder();
+        CodeBlock.Builder requestCodes = CodeBlock.builder();
+        CodeBlock.Builder permissions = CodeBlock.builder();
+        for (int i = 0; i < size; i++) {
+            MethodModel method = entryMethods.get(i);
+            hostNames.add("$S,\n", entryHosts.get(i).hostBinaryName);
+            methodNames.add("$S,\n", method.name);
+            requestCodes.add("$L,\n", method.requestCode);
+            permissions.add("{");
+            for (int p = 0; p < method.permissions.size(); p++) {
+                permissions.add(p == 0 ? "$S" : ", $S", method.permissions.get(p));
+            }
+            permissions.add("},\n");
+        }
+
+        // Slot -> index + 1, 0 for an empty slot. Only the first method of a code or host is put.
+        int[] codeSlots = new int[tableSize(size)];
+        int[] hostSlots = new int[tableSize(size)];
+        for (int i = 0; i < size; i++) {
+            int code = entryMethods.get(i).requestCode;
+            put(codeSlots, code, i, entryMethods, null);
+            if (i == 0 || entryHosts.get(i - 1) != entryHosts.get(i)) {
+                put(hostSlots, entryHosts.get(i).hostBinaryName.hashCode(), i, null, entryHosts);
+            }
+        }
+
+        // Request code -> requesters owning it, codes with the same owners share a route.
+        Map<Integer, List<HostModel>> owners = new TreeMap<>();
+        for (HostModel host : hosts) {
+            for (MethodModel method : host.methods) {
+                addOwner(owners, method.requestCode, host);
+            }
+            for (GroupModel group : host.groups) {
+                addOwner(owners, group.requestCode, host);
+            }
+        }
+        Map<List<HostModel>, Integer> routeIds = new LinkedHashMap<>();
+        CodeBlock.Builder routeCodes = CodeBlock.builder();
+        CodeBlock.Builder routes = CodeBlock.builder();
+        int[] routeSlots = new int[tableSize(owners.size())];
+        int index = 0;
+        for (Map.Entry<Integer, List<HostModel>> entry : owners.entrySet()) {
+            Integer route = routeIds.get(entry.getValue());
+            if (route == null) {
+                route = routeIds.size();
+                routeIds.put(entry.getValue(), route);
+            }
+            routeCodes.add("$L,\n", entry.getKey());
+            routes.add("$L,\n", route);
+            putCode(routeSlots, entry.getKey(), index++);
+        }
+
+        TypeSpec registry = TypeSpec.classBuilder(registryName.simpleName())
+                .addJavadoc("Every @RequiresPermission method of the module, generated by PermissionRequester.\n"
+                        + "<p>\n"
+                        + "Methods are addressed by their index in [0, {@link #size()}), the methods of a host\n"
+                        + "have consecutive indices.\n"
+                        + "<p>\n"
+                        + "{@link #dispatch(Object, int, String[], int[])} routes permission results to the requesters.\n")
+                .addModifiers(Modifier.PUBLIC, Modifier.FINAL)
+                .addField(constant(STRING_ARRAY, "HOSTS", arrayOf(hostNames)))
+                .addField(constant(STRING_ARRAY, "METHODS", arrayOf(methodNames)))
+                .addField(constant(ArrayTypeName.of(int.class), "REQUEST_CODES", arrayOf(requestCodes)))
+                .addField(constant(ArrayTypeName.of(STRING_ARRAY), "PERMISSIONS", arrayOf(permissions)))
+                .addField(constant(ArrayTypeName.of(int.class), "CODE_SLOTS", slotsOf(codeSlots)))
+                .addField(constant(ArrayTypeName.of(int.class), "HOST_SLOTS", slotsOf(hostSlots)))
+                .addField(constant(ArrayTypeName.of(int.class), "ROUTE_CODES", arrayOf(routeCodes)))
+                .addField(constant(ArrayTypeName.of(int.class), "ROUTES", arrayOf(routes)))
+                .addField(constant(ArrayTypeName.of(int.class), "ROUTE_SLOTS", slotsOf(routeSlots)))
+                .addMethod(MethodSpec.constructorBuilder().addModifiers(Modifier.PRIVATE).build())
+                .addMethods(createMethodSpecs())
+                .addMethods(createRouterMethodSpecs(routeIds.keySet()))
+                .build();
+
+        return JavaFile.builder(registryName.packageName(), registry)
+                .addFileComment(SettingsProvider.FILE_COMMENT)
+                .skipJavaLangImports(true)
+                .build();
+    }
+
+    private static List<MethodSpec> createMethodSpecs() {
+        List<MethodSpec> methodSpecs = new ArrayList<>();
+
+        methodSpecs.add(publicStatic("size", TypeName.INT)
+                .addStatement("return HOSTS.length")
+                .build());
+        methodSpecs.add(publicStatic("hostAt", ClassName.get(String.class))
+                .addJavadoc("@return binary name of the host, as returned by {@link Class#getName()}\n")
+                .addParameter(TypeName.INT, "index")
+                .addStatement("return HOSTS[index]")
+                .build());
+        methodSpecs.add(publicStatic("methodAt", ClassName.get(String.class))
+                .addParameter(TypeName.INT, "index")
+                .addStatement("return METHODS[index]")
+                .build());
+        methodSpecs.add(publicStatic("requestCodeAt", TypeName.INT)
+                .addParameter(TypeName.INT, "index")
+                .addStatement("return REQUEST_CODES[index]")
+                .build());
+        methodSpecs.add(publicStatic("permissionsAt", STRING_ARRAY)
+                .addParameter(TypeName.INT, "index")
+                .addStatement("return PERMISSIONS[index].clone()")
+                .build());
+
+        methodSpecs.add(publicStatic("indexOf", TypeName.INT)
+                .addJavadoc("@return index of the method with the request code, or -1. If hosts share a code this\n"
+                        + "is the first of them, use {@link #indexOf(String, int)} to tell them apart.\n")
+                .addParameter(TypeName.INT, "requestCode")
+                .addStatement("int mask = CODE_SLOTS.length - 1")
+                .beginControlFlow("for (int slot = slot(requestCode, mask); ; slot = (slot + 1) & mask)")
+                .addStatement("int entry = CODE_SLOTS[slot]")
+                .addStatement("if (entry == 0) return -1")
+                .addStatement("if (REQUEST_CODES[entry - 1] == requestCode) return entry - 1")
+                .endControlFlow()
+                .build());
+        methodSpecs.add(publicStatic("indexOf", TypeName.INT)
+                .addJavadoc("@return index of the method of the host with the request code, or -1\n")
+                .addParameter(String.class, "hostClassName")
+                .addParameter(TypeName.INT, "requestCode")
+                .addStatement("int first = firstIndexOf(hostClassName)")
+                .addStatement("if (first < 0) return -1")
+                .beginControlFlow("for (int i = first; i < HOSTS.length && HOSTS[i].equals(hostClassName); i++)")
+                .addStatement("if (REQUEST_CODES[i] == requestCode) return i")
+                .endControlFlow()
+                .addStatement("return -1")
+                .build());
+        methodSpecs.add(publicStatic("firstIndexOf", TypeName.INT)
+                .addJavadoc("@param hostClassName binary name of the host, as returned by {@link Class#getName()}\n"
+                        + "@return index of the first method of the host, or -1\n")
+                .addParameter(String.class, "hostClassName")
+                .addStatement("int mask = HOST_SLOTS.length - 1")
+                .beginControlFlow("for (int slot = slot(hostClassName.hashCode(), mask); ; slot = (slot + 1) & mask)")
+                .addStatement("int entry = HOST_SLOTS[slot]")
+                .addStatement("if (entry == 0) return -1")
+                .addStatement("if (HOSTS[entry - 1].equals(hostClassName)) return entry - 1")
+                .endControlFlow()
+                .build());
+        methodSpecs.add(publicStatic("countOf", TypeName.INT)
+                .addJavadoc("@return number of methods of the host\n")
+                .addParameter(String.class, "hostClassName")
+                .addStatement("int first = firstIndexOf(hostClassName)")
+                .addStatement("if (first < 0) return 0")
+                .addStatement("int end = first + 1")
+                .addStatement("while (end < HOSTS.length && HOSTS[end].equals(hostClassName)) end++")
+                .addStatement("return end - first")
+                .build());
+
+        methodSpecs.add(MethodSpec.methodBuilder("slot")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .returns(TypeName.INT)
+                .addParameter(TypeName.INT, "hash")
+                .addParameter(TypeName.INT, "mask")
+                .addStatement("return (hash ^ (hash >>> 16)) & mask")
+                .build());
+        return methodSpecs;
+    }
+
+    private static void addOwner(Map<Integer, List<HostModel>> owners, int code, HostModel host) {
+        List<HostModel> hosts = owners.get(code);
+        if (hosts == null) {
+            hosts = new ArrayList<>();
+            owners.put(code, hosts);
+        }
+        if (!hosts.contains(host)) {
+            hosts.add(host);
+        }
+    }
+
+    /**
+     * @param routes requesters of each route, in the order of the route numbers
+     */
+    private static List<MethodSpec> createRouterMethodSpecs(Iterable<List<HostModel>> routes) {
+        List<MethodSpec> methodSpecs = new ArrayList<>();
+
+        MethodSpec.Builder dispatch = publicStatic("dispatch", TypeName.BOOLEAN)
+                .addJavadoc("Pass a permission result to the requester that made the request, call from\n"
+                        + "onRequestPermissionsResult of the Activities and Fragments of the module.\n"
+                        + "\n"
+                        + "@param host the Activity or Fragment the result was delivered to\n"
+                        + "@return false if no requester of the module owns the request code\n")
+                .addParameter(Object.class, "host")
+                .addParameter(TypeName.INT, "requestCode")
+                .addParameter(STRING_ARRAY, "permissions")
+                .addParameter(ArrayTypeName.of(int.class), "grantResults")
+                .beginControlFlow("switch (routeOf(requestCode))");
+        int route = 0;
+        for (List<HostModel> hosts : routes) {
+            CodeBlock.Builder calls = CodeBlock.builder();
+            for (int i = 0; i < hosts.size(); i++) {
+                HostModel host = hosts.get(i);
+                calls.add(i == 0 ? "$T.dispatch(host, requestCode, permissions, grantResults)"
+                                : "\n|| $T.dispatch(host, requestCode, permissions, grantResults)",
+                        ClassName.get(host.packageName, host.className));
+            }
+            dispatch.addCode("case $L:\n$>", route++)
+                    .addStatement("return $>$L$<", calls.build())
+                    .addCode("$<");
+        }
+        dispatch.addCode("default:\n$>")
+                .addStatement("return false")
+                .addCode("$<")
+                .endControlFlow();
+        methodSpecs.add(dispatch.build());
+
+        methodSpecs.add(MethodSpec.methodBuilder("routeOf")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .returns(TypeName.INT)
+                .addParameter(TypeName.INT, "requestCode")
+                .addStatement("int mask = ROUTE_SLOTS.length - 1")
+                .beginControlFlow("for (int slot = slot(requestCode, mask); ; slot = (slot + 1) & mask)")
+                .addStatement("int entry = ROUTE_SLOTS[slot]")
+                .addStatement("if (entry == 0) return -1")
+                .addStatement("if (ROUTE_CODES[entry - 1] == requestCode) return ROUTES[entry - 1]")
+                .endControlFlow()
+                .build());
+        return methodSpecs;
+    }
+
+    /**
+     * Same as the slot method of the generated class.
+     */
+    static int slot(int hash, int mask) {
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * @return a power of two at least twice the size, so a probe always ends at an empty slot
+     */
+    static int tableSize(int size) {
+        int tableSize = 2;
+        while (tableSize < size * 2) {
+            tableSize <<= 1;
+        }
+        return tableSize;
+    }
+
+    /**
+     * Put the index at the first free slot of the hash, unless an index with the same key is
+     * there already. Keys are compared by request code, or by host if hosts is given.
+     */
+    private static void put(int[] slots, int hash, int index,
+                            List<MethodModel> methods, List<HostModel> hosts) {
+        int mask = slots.length - 1;
+        for (int slot = slot(hash, mask); ; slot = (slot + 1) & mask) {
+            int entry = slots[slot];
+            if (entry == 0) {
+                slots[slot] = index + 1;
+                return;
+            }
+            boolean sameKey = hosts != null
+                    ? hosts.get(entry - 1).hostBinaryName.equals(hosts.get(index).hostBinaryName)
+                    : methods.get(entry - 1).requestCode == methods.get(index).requestCode;
+            if (sameKey) return;
+        }
+    }
+
+    /**
+     * Put the index of a distinct request code at the first free slot of the code.
+     */
+    private static void putCode(int[] slots, int code, int index) {
+        int mask = slots.length - 1;
+        int slot = slot(code, mask);
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = index + 1;
+    }
+
+    private static MethodSpec.Builder publicStatic(String name, TypeName returns) {
+        return MethodSpec.methodBuilder(name)
+                .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+                .returns(returns);
+    }
+
+    private static FieldSpec constant(TypeName type, String name, CodeBlock initializer) {
+        return FieldSpec.builder(type, name, Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer(initializer)
+                .build();
+    }
+
+    private static CodeBlock arrayOf(CodeBlock.Builder elements) {
+        CodeBlock body = elements.build();
+        if (body.isEmpty()) return CodeBlock.of("{}");
+        return CodeBlock.builder().add("{\n$>$>").add(body).add("$<$<}").build();
+    }
+
+    private static CodeBlock slotsOf(int[] slots) {
+        CodeBlock.Builder elements = CodeBlock.builder();
+        for (int i = 0; i < slots.length; i++) {
+            elements.add(i % 16 == 15 || i == slots.length - 1 ? "$L,\n" : "$L, ", slots[i]);
+        }
+        return arrayOf(elements);
+    }
+}
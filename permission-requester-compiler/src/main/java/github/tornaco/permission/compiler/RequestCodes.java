@@ -0,0 +1,129 @@
+package github.tornaco.permission.compiler;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.util.Types;
+
+/**
+ * Allocates the request codes of one @RuntimePermissions host, or of the whole module when the
+ * registry is enabled.
+ * <p>
+ * A code is derived from a stable hash of the host class and the method signature, so it does
+ * not depend on processing order and identical builds produce identical sources. Android only
+ * accepts the lower 16 bits for a request code, the upper {@link #NAMESPACE_BITS} of them hold a
+ * per-module namespace (see {@link #OPTION_NAMESPACE}) and the rest hold the hash.
+ * <p>
+ * Colliding codes are probed past, so the codes of one allocator are unique. With one allocator
+ * for the module they depend on the hosts allocated before, which are taken in name order.
+ */
+class RequestCodes {
+
+    static final String OPTION_NAMESPACE = "permissionRequester.requestCodeNamespace";
+
+    static final int NAMESPACE_BITS = 4;
+    static final int HASH_BITS = 16 - NAMESPACE_BITS;
+    static final int MAX_NAMESPACE = (1 << NAMESPACE_BITS) - 1;
+
+    private static final int HASH_MASK = (1 << HASH_BITS) - 1;
+
+    private final int namespace;
+    private final Map<Integer, String> allocated = new HashMap<>();
+    private final Set<String> keys = new HashSet<>();
+
+    RequestCodes(int namespace) {
+        if (namespace < 0 || namespace > MAX_NAMESPACE) {
+            throw new IllegalArgumentException("Request code namespace should be in [0, "
+                    + MAX_NAMESPACE + "], but was " + namespace);
+        }
+        this.namespace = namespace;
+    }
+
+    /**
+     * Parse the namespace from the processor options.
+     *
+     * @param options processor options
+     * @return the namespace, 0 if not set
+     * @throws IllegalArgumentException if the option is not a valid namespace
+     */
+    static int parseNamespace(Map<String, String> options) {
+        String value = options.get(OPTION_NAMESPACE);
+        if (value == null || value.trim().length() == 0) return 0;
+        int namespace;
+        try {
+            namespace = Integer.decode(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Illegal value for " + OPTION_NAMESPACE + ": " + value);
+        }
+        if (namespace < 0 || namespace > MAX_NAMESPACE) {
+            throw new IllegalArgumentException(OPTION_NAMESPACE + " should be in [0, "
+                    + MAX_NAMESPACE + "], but was " + value);
+        }
+        return namespace;
+    }
+
+    /**
+     * @return the stable key of the method, e.g. {@code a.b.Host#doIt(java.lang.String,int)}
+     */
+    static String keyOf(Types types, TypeElement host, ExecutableElement method) {
+        StringBuilder key = new StringBuilder(host.getQualifiedName())
+                .append('#').append(method.getSimpleName()).append('(');
+        List<? extends VariableElement> params = method.getParameters();
+        for (int i = 0; i < params.size(); i++) {
+            if (i != 0) key.append(',');
+            key.append(types.erasure(params.get(i).asType()));
+        }
+        return key.append(')').toString();
+    }
+
+    /**
+     * Allocate the request code for the method with the given key. A hash collision with a code
+     * already allocated for this host is resolved by linear probing, so the result is still
+     * deterministic for the same host.
+     *
+     * @param key method key, see {@link #keyOf(Types, TypeElement, ExecutableElement)}
+     * @return the request code
+     * @throws IllegalStateException if the key was already allocated or no code is left
+     */
+    int allocate(String key) {
+        if (!keys.add(key)) {
+            throw new IllegalStateException("Request code already allocated for " + key);
+        }
+        int preferred = preferredCode(key);
+        for (int probe = 0; probe <= HASH_MASK; probe++) {
+            int code = (namespace << HASH_BITS) | ((preferred + probe) & HASH_MASK);
+            if (!allocated.containsKey(code)) {
+                allocated.put(code, key);
+                return code;
+            }
+        }
+        throw new IllegalStateException("No request code left in namespace " + namespace + " for " + key
+                + ", the " + HASH_BITS + " bit hash space limits a module to " + (HASH_MASK + 1)
+                + " codes per namespace");
+    }
+
+    /**
+     * @return the code the key hashes to, {@link #allocate(String)} returns another one only if
+     * this one collides with a code allocated before
+     */
+    int preferredCode(String key) {
+        int hash = Hashing.murmur3_32().hashString(key, Charsets.UTF_8).asInt();
+        return (namespace << HASH_BITS) | (hash & HASH_MASK);
+    }
+
+    /**
+     * @return the key the code was allocated for, or null
+     */
+    String ownerOf(int code) {
+        return allocated.get(code);
+    }
+}
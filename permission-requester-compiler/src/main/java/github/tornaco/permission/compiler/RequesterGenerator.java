@@ -0,0 +1,721 @@
+package github.tornaco.permission.compiler;
+
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.JavaFile;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
+import com.squareup.javapoet.TypeName;
+import com.squareup.javapoet.TypeSpec;
+
+import com.google.common.collect.ImmutableList;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.lang.model.element.Modifier;
+
+import github.tornaco.permission.compiler.common.SettingsProvider;
+import github.tornaco.permission.requester.RequiresPermission;
+
+import static javax.lang.model.element.Modifier.FINAL;
+
+/**
+ * Renders the requester class of a {@link HostModel}.
+ * <p>
+ * This only works on the model and never touches Elements, Types or the Messager, so it can run
+ * on any thread and for several hosts in parallel.
+ * <p>
+ * The generated code checks, requests and keeps permissions through the runtime only, see the
+ * README for what the requesters do.
+ */
+class RequesterGenerator {
+
+    private static final boolean DEBUG = true;
+
+    private static final String RUNTIME_PACKAGE = "github.tornaco.permission.requester.runtime";
+    static final ClassName PENDING_REQUESTS = ClassName.get(RUNTIME_PACKAGE, "PendingRequests");
+    static final ClassName PENDING_REQUEST = ClassName.get(RUNTIME_PACKAGE, "PendingRequest");
+    static final ClassName EVICTION_REASON = ClassName.get(RUNTIME_PACKAGE, "EvictionListener", "Reason");
+    static final ClassName GROUP_REQUEST = ClassName.get(RUNTIME_PACKAGE, "GroupRequest");
+    static final ClassName GRANT_STATE_CACHE = ClassName.get(RUNTIME_PACKAGE, "GrantStateCache");
+    static final ClassName GRANT_STATE_PUBLISHER = ClassName.get(RUNTIME_PACKAGE, "GrantStatePublisher");
+    static final ClassName REQUEST_SCHEDULER = ClassName.get(RUNTIME_PACKAGE, "RequestScheduler");
+    static final ClassName LAUNCHER = REQUEST_SCHEDULER.nestedClass("Launcher");
+    static final ClassName MAIN_THREAD = ClassName.get(RUNTIME_PACKAGE, "MainThread");
+    static final ClassName GRANT_EXECUTORS = ClassName.get(RUNTIME_PACKAGE, "GrantExecutors");
+    static final ClassName ASYNC_REQUEST = ClassName.get(RUNTIME_PACKAGE, "AsyncRequest");
+    static final ClassName GRANT_RESULT = ClassName.get(RUNTIME_PACKAGE, "GrantResult");
+    static final ClassName COMPLETABLE_FUTURE = ClassName.get("java.util.concurrent", "CompletableFuture");
+    static final ClassName PERMISSIONS = ClassName.get(RUNTIME_PACKAGE, "Permissions");
+    static final ClassName PERMISSION_BACKEND = ClassName.get(RUNTIME_PACKAGE, "PermissionBackend");
+
+    private static final String RESULT_JAVADOC =
+            "@return false if no request of this requester waited for the result\n";
+
+    private RequesterGenerator() {
+    }
+
+    /**
+     * @param async  also generate the Async methods, closure dispatch only
+     * @param routed make the requester public with a dispatch method for the registry
+     */
+    static JavaFile generate(HostModel host, Dispatch dispatch, boolean async, boolean routed) {
+
+        // Interned permission sets, in the order of their first use.
+        Map<ImmutableList<String>, FieldSpec> permissionFields = new LinkedHashMap<>();
+        for (MethodModel method : host.methods) {
+            if (permissionFields.containsKey(method.permissions)) continue;
+            permissionFields.put(method.permissions, createPermissionsField(
+                    "PERMISSIONS_" + permissionFields.size(), method.permissions));
+        }
+        for (GroupModel group : host.groups) {
+            if (permissionFields.containsKey(group.permissions)) continue;
+            permissionFields.put(group.permissions, createPermissionsField(
+                    "PERMISSIONS_" + permissionFields.size(), group.permissions));
+        }
+
+        TypeSpec.Builder subClass = TypeSpec.classBuilder(host.className)
+                .addField(boolean.class, "DEBUG", Modifier.STATIC, Modifier.FINAL, Modifier.PRIVATE)
+                .addStaticBlock(CodeBlock.builder()
+                        .add("DEBUG = " + DEBUG + ";\n")
+                        .build());
+
+        // The switch dispatch keeps group requests and the calls made while a method waits here.
+        subClass.addField(FieldSpec.builder(PENDING_REQUESTS, "PENDING_REQUESTS")
+                .addModifiers(Modifier.STATIC, Modifier.FINAL, Modifier.PRIVATE)
+                .initializer("new $T($T.class)", PENDING_REQUESTS,
+                        ClassName.get(host.packageName, host.className))
+                .build());
+        List<List<FieldSpec>> pendingFields = null;
+        if (dispatch == Dispatch.SWITCH) {
+            pendingFields = createPendingFields(host);
+            for (List<FieldSpec> fields : pendingFields) {
+                subClass.addFields(fields);
+            }
+            // System.nanoTime() of each pending request, for the time to live.
+            subClass.addField(FieldSpec.builder(long[].class, "PENDING_SINCE",
+                    Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                    .initializer("new long[$L]", host.methods.size())
+                    .build());
+        }
+
+        subClass.addField(createLauncherField(host, pendingFields))
+                .addFields(permissionFields.values())
+                .addMethods(createMethodSpecs(host, permissionFields, pendingFields, async))
+                .addTypeVariables(host.typeVariables);
+        if (routed) {
+            subClass.addModifiers(Modifier.PUBLIC)
+                    .addMethod(createRoutedDispatchMethod(host));
+        }
+
+        return JavaFile.builder(host.packageName, subClass.build())
+                .addFileComment(SettingsProvider.FILE_COMMENT)
+                .skipJavaLangImports(true)
+                .build();
+    }
+
+    /**
+     * Each distinct permission set of a host is one array, so a Checked method does not allocate
+     * when the permissions are granted already.
+     */
+    private static FieldSpec createPermissionsField(String name, List<String> permissions) {
+        CodeBlock.Builder initializer = CodeBlock.builder().add("{");
+        for (int i = 0; i < permissions.size(); i++) {
+            initializer.add(i == 0 ? "$S" : ", $S", permissions.get(i));
+        }
+        return FieldSpec.builder(String[].class, name, Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer(initializer.add("}").build())
+                .build();
+    }
+
+    /**
+     * Re-enter the method on the main thread when called from another one. The permissions are
+     * checked on the calling thread, the request is handed over through the lock-free queue of
+     * MainThread, so pending requests are only touched on the main thread and need no locks.
+     */
+    private static CodeBlock createHandOffToMainThread(String methodName, List<ParameterSpec> parameterSpecs) {
+        StringBuilder args = new StringBuilder();
+        for (ParameterSpec parameterSpec : parameterSpecs) {
+            args.append(parameterSpec.name).append(", ");
+        }
+        args.append("host");
+        TypeSpec task = TypeSpec.anonymousClassBuilder("")
+                .addSuperinterface(Runnable.class)
+                .addMethod(MethodSpec.methodBuilder("run")
+                        .addAnnotation(Override.class)
+                        .addModifiers(Modifier.PUBLIC)
+                        .addStatement("$N($L)", methodName, args)
+                        .build())
+                .build();
+        return CodeBlock.builder()
+                .beginControlFlow("if (!$T.isCurrent())", MAIN_THREAD)
+                .addStatement("$T.post($L)", MAIN_THREAD, task)
+                .addStatement("return")
+                .endControlFlow()
+                .build();
+    }
+
+    /**
+     * The Launcher drops a queued request whose pending request is gone, checks the permissions
+     * of the others again when it is their turn, and completes them with a granted result if they
+     * were granted meanwhile.
+     *
+     * @param pendingFields fields of {@link #createPendingFields(HostModel)}, or null
+     */
+    private static FieldSpec createLauncherField(HostModel host, List<List<FieldSpec>> pendingFields) {
+        TypeSpec.Builder launcher = TypeSpec.anonymousClassBuilder("")
+                .superclass(ParameterizedTypeName.get(LAUNCHER, host.hostClassName))
+                .addMethod(createIsPendingMethod(host, pendingFields))
+                .addMethod(MethodSpec.methodBuilder("completeGranted")
+                        .addAnnotation(Override.class)
+                        .addModifiers(Modifier.PROTECTED)
+                        .addParameter(host.hostClassName, "host")
+                        .addParameter(String[].class, "permissions")
+                        .addParameter(TypeName.INT, "requestCode")
+                        .returns(TypeName.BOOLEAN)
+                        .addStatement("int[] grantResults = new int[permissions.length]")
+                        .addStatement("$T.fill(grantResults, $T.GRANTED)", Arrays.class, PERMISSION_BACKEND)
+                        .addStatement("onRequestPermissionsResult(requestCode, permissions, grantResults)")
+                        .addStatement("return true")
+                        .build());
+        if (!"host".equals(host.kind.contextExpression)) {
+            launcher.addMethod(MethodSpec.methodBuilder("contextOf")
+                    .addAnnotation(Override.class)
+                    .addModifiers(Modifier.PROTECTED)
+                    .addParameter(host.hostClassName, "host")
+                    .returns(Object.class)
+                    .addStatement("return " + host.kind.contextExpression)
+                    .build());
+        }
+        return FieldSpec.builder(ParameterizedTypeName.get(LAUNCHER, host.hostClassName), "LAUNCHER",
+                Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer("$L", launcher.build())
+                .build();
+    }
+
+    private static MethodSpec createIsPendingMethod(HostModel host, List<List<FieldSpec>> pendingFields) {
+        MethodSpec.Builder isPending = MethodSpec.methodBuilder("isPending")
+                .addAnnotation(Override.class)
+                .addModifiers(Modifier.PROTECTED)
+                .addParameter(host.hostClassName, "host")
+                .addParameter(TypeName.INT, "requestCode")
+                .returns(TypeName.BOOLEAN);
+        if (pendingFields == null) {
+            return isPending.addStatement("return PENDING_REQUESTS.isPending(requestCode, host)").build();
+        }
+        isPending.addStatement("sweep()")
+                .beginControlFlow("switch (requestCode)");
+        for (int i = 0; i < host.methods.size(); i++) {
+            FieldSpec hostField = pendingFields.get(i).get(0);
+            isPending.addCode("case $L:\n$>", host.methods.get(i).requestCode)
+                    .addStatement("if ($N != null && $N.get() == host) return true", hostField, hostField)
+                    .addStatement("break")
+                    .addCode("$<");
+        }
+        return isPending.endControlFlow()
+                .addStatement("return PENDING_REQUESTS.isPending(requestCode, host)")
+                .build();
+    }
+
+    /**
+     * @return for each method the field of the weak host, followed by those of its arguments
+     */
+    private static List<List<FieldSpec>> createPendingFields(HostModel host) {
+        List<List<FieldSpec>> pendingFields = new ArrayList<>(host.methods.size());
+        for (int i = 0; i < host.methods.size(); i++) {
+            List<FieldSpec> fields = new ArrayList<>();
+            fields.add(FieldSpec.builder(ParameterizedTypeName.get(ClassName.get(WeakReference.class),
+                    host.hostClassName), "sPending" + i + "Host",
+                    Modifier.PRIVATE, Modifier.STATIC).build());
+            for (ParameterSpec parameter : host.methods.get(i).parameters) {
+                fields.add(FieldSpec.builder(parameter.type, "sPending" + i
+                                + Character.toUpperCase(parameter.name.charAt(0)) + parameter.name.substring(1),
+                        Modifier.PRIVATE, Modifier.STATIC).build());
+            }
+            pendingFields.add(fields);
+        }
+        return pendingFields;
+    }
+
+    /**
+     * @param pendingFields fields of {@link #createPendingFields(HostModel)}, or null to dispatch
+     *                      through the PendingRequests
+     */
+    private static Iterable<MethodSpec> createMethodSpecs(HostModel host,
+                                                          Map<ImmutableList<String>, FieldSpec> permissionFields,
+                                                          List<List<FieldSpec>> pendingFields,
+                                                          boolean async) {
+        List<MethodSpec> methodSpecs = new ArrayList<>();
+
+        methodSpecs.add(createOnPermissionRequestResultMethod(pendingFields != null));
+        if (pendingFields != null) {
+            methodSpecs.add(createDispatchFieldsMethod(host, permissionFields, pendingFields));
+            methodSpecs.add(createSweepMethod(host, pendingFields));
+        }
+
+        for (int i = 0; i < host.methods.size(); i++) {
+            MethodModel method = host.methods.get(i);
+            methodSpecs.add(createMethodForRequiresPermission(host, method,
+                    permissionFields.get(method.permissions),
+                    pendingFields == null ? null : pendingFields.get(i)));
+            if (async) {
+                methodSpecs.addAll(createAsyncMethods(host, method, permissionFields.get(method.permissions)));
+            }
+        }
+        for (GroupModel group : host.groups) {
+            methodSpecs.add(createMethodForGroup(host, group, permissionFields.get(group.permissions)));
+        }
+        return methodSpecs;
+    }
+
+    /**
+     * The requests waiting for a result are in the PendingRequests, keyed by request code, each
+     * with its grant and deny path in one PendingRequest. With {@link Dispatch#SWITCH} the request
+     * kept in the fields of the method gets the result first.
+     */
+    private static MethodSpec createOnPermissionRequestResultMethod(boolean switchDispatch) {
+        MethodSpec.Builder methodSpecBuilder = MethodSpec.methodBuilder("onRequestPermissionsResult")
+                .addJavadoc(RESULT_JAVADOC)
+                .returns(TypeName.BOOLEAN)
+                .addParameter(TypeName.INT, "requestCode")
+                .addParameter(String[].class, "permissions")
+                .addParameter(int[].class, "grantResults")
+                .addStatement("$T.onResult(permissions, grantResults, $T.GRANTED)",
+                        GRANT_STATE_CACHE, PERMISSION_BACKEND)
+                .beginControlFlow("try");
+        if (switchDispatch) {
+            methodSpecBuilder.addStatement("boolean dispatched = dispatchFields(requestCode, permissions, grantResults)")
+                    .addStatement("return PENDING_REQUESTS.dispatch(requestCode, permissions, grantResults, $T.GRANTED)\n"
+                            + "$>$>|| dispatched$<$<", PERMISSION_BACKEND);
+        } else {
+            methodSpecBuilder.addStatement("return PENDING_REQUESTS.dispatch(requestCode, permissions, grantResults, $T.GRANTED)",
+                    PERMISSION_BACKEND);
+        }
+        methodSpecBuilder.nextControlFlow("finally")
+                .addCode(createOnResultStatement())
+                .endControlFlow()
+                .addModifiers(Modifier.STATIC)
+                .addModifiers(Modifier.FINAL);
+        return methodSpecBuilder.build();
+    }
+
+    /**
+     * Move the queue on once the result is delivered, so a queued request the scheduler completes
+     * as granted right away is called back after this one.
+     */
+    private static CodeBlock createOnResultStatement() {
+        return CodeBlock.of("$T.onResult(LAUNCHER, requestCode);\n", REQUEST_SCHEDULER);
+    }
+
+    /**
+     * Release the arguments of the switch dispatch requests that expired or whose host is gone,
+     * by the rules of the PendingRequests.
+     */
+    private static MethodSpec createSweepMethod(HostModel host, List<List<FieldSpec>> pendingFields) {
+        MethodSpec.Builder sweep = MethodSpec.methodBuilder("sweep")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .addStatement("$T reason", EVICTION_REASON);
+        for (int i = 0; i < pendingFields.size(); i++) {
+            List<FieldSpec> fields = pendingFields.get(i);
+            sweep.beginControlFlow("if ($N != null\n$>$>&& (reason = $T.staleReasonOf($N, PENDING_SINCE[$L])) != null$<$<)",
+                    fields.get(0), PENDING_REQUESTS, fields.get(0), i);
+            for (FieldSpec field : fields) {
+                if (!field.type.isPrimitive()) {
+                    sweep.addStatement("$N = null", field);
+                }
+            }
+            sweep.addStatement("$T.reportEvicted($T.class, $L, reason)", PENDING_REQUESTS,
+                    ClassName.get(host.packageName, host.className), host.methods.get(i).requestCode)
+                    .endControlFlow();
+        }
+        return sweep.build();
+    }
+
+    /**
+     * The entry of the registry's router, which may be in another package and only knows the
+     * request code, so it passes the host to tell requesters sharing a code apart. A host may
+     * extend another one, so the result is only claimed if a request waited for it.
+     */
+    private static MethodSpec createRoutedDispatchMethod(HostModel host) {
+        return MethodSpec.methodBuilder("dispatch")
+                .addJavadoc("@return false if the host is not one of this requester, or no request waited for the result\n")
+                .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+                .returns(TypeName.BOOLEAN)
+                .addParameter(Object.class, "host")
+                .addParameter(TypeName.INT, "requestCode")
+                .addParameter(String[].class, "permissions")
+                .addParameter(int[].class, "grantResults")
+                .addStatement("if (!(host instanceof $T)) return false", host.hostClassName)
+                .addStatement("return onRequestPermissionsResult(requestCode, permissions, grantResults)")
+                .build();
+    }
+
+    /**
+     * {@link Dispatch#SWITCH}: the arguments of each method's request are in static fields, and the
+     * result is dispatched by a switch on the request code. A partial result goes to the
+     * OnPartiallyGranted method if there is one, else to the OnDenied method.
+     */
+    private static MethodSpec createDispatchFieldsMethod(HostModel host,
+                                                         Map<ImmutableList<String>, FieldSpec> permissionFields,
+                                                         List<List<FieldSpec>> pendingFields) {
+        MethodSpec.Builder methodSpecBuilder = MethodSpec.methodBuilder("dispatchFields")
+                .returns(TypeName.BOOLEAN)
+                .addParameter(TypeName.INT, "requestCode")
+                .addParameter(String[].class, "permissions")
+                .addParameter(int[].class, "grantResults")
+                .addStatement("sweep()")
+                .beginControlFlow("switch (requestCode)");
+        for (int i = 0; i < host.methods.size(); i++) {
+            MethodModel method = host.methods.get(i);
+            List<FieldSpec> fields = pendingFields.get(i);
+            methodSpecBuilder.beginControlFlow("case $L:", method.requestCode)
+                    .addStatement("$T hostRef = $N", fields.get(0).type, fields.get(0))
+                    .addStatement("if (hostRef == null) return false");
+            // Copy and release the arguments first, the host may request the method again.
+            // They are captured when the method runs on an executor.
+            String modifier = executorOf(method) == null ? "" : "final ";
+            StringBuilder args = new StringBuilder();
+            for (int a = 1; a < fields.size(); a++) {
+                FieldSpec field = fields.get(a);
+                methodSpecBuilder.addStatement("$L$T arg$L = $N", modifier, field.type, a - 1, field);
+                args.append(a == 1 ? "" : ", ").append("arg").append(a - 1);
+            }
+            methodSpecBuilder.addStatement("$N = null", fields.get(0));
+            for (int a = 1; a < fields.size(); a++) {
+                if (!fields.get(a).type.isPrimitive()) {
+                    methodSpecBuilder.addStatement("$N = null", fields.get(a));
+                }
+            }
+            methodSpecBuilder.addStatement("$L$T host = hostRef.get()", modifier, host.hostClassName)
+                    .addStatement("if (host == null) return true")
+                    .beginControlFlow("if ($T.allGranted(grantResults, $T.GRANTED))",
+                            PENDING_REQUESTS, PERMISSION_BACKEND)
+                    .addCode(createGrantedCall(method, args.toString(), executorOf(method)));
+            if (method.onPartiallyGrantedMethod != null) {
+                FieldSpec permissionsField = permissionFields.get(method.permissions);
+                methodSpecBuilder.addStatement("return true")
+                        .endControlFlow()
+                        .addStatement("int granted = $T.countGranted($N, permissions, grantResults, $T.GRANTED)",
+                                PENDING_REQUESTS, permissionsField, PERMISSION_BACKEND)
+                        .beginControlFlow("if (granted > 0)")
+                        .addStatement("host.$N($T.grantedOf($N, granted, permissions, grantResults, $T.GRANTED),\n"
+                                        + "$>$>$T.deniedOf($N, granted, permissions, grantResults, $T.GRANTED)$<$<)",
+                                method.onPartiallyGrantedMethod, PENDING_REQUESTS, permissionsField,
+                                PERMISSION_BACKEND, PENDING_REQUESTS, permissionsField, PERMISSION_BACKEND);
+            }
+            if (method.onDeniedMethod != null) {
+                methodSpecBuilder.nextControlFlow("else")
+                        .addStatement("host.$N()", method.onDeniedMethod);
+            }
+            methodSpecBuilder.endControlFlow()
+                    .addStatement("return true")
+                    .endControlFlow();
+        }
+        return methodSpecBuilder.addCode("default:\n$>")
+                .addStatement("return false")
+                .addCode("$<")
+                .endControlFlow()
+                .addModifiers(Modifier.PRIVATE)
+                .addModifiers(Modifier.STATIC)
+                .build();
+    }
+
+    /**
+     * @return the expression of the executor the method runs on when granted with a result, which
+     * comes on the main thread, or null to run it right away
+     */
+    private static CodeBlock executorOf(MethodModel method) {
+        switch (method.runOn) {
+            case BACKGROUND:
+                return CodeBlock.of("$T.background()", GRANT_EXECUTORS);
+            case VIRTUAL:
+                return CodeBlock.of("$T.virtual()", GRANT_EXECUTORS);
+            case CUSTOM:
+                return CodeBlock.of("$T.custom()", GRANT_EXECUTORS);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @param executor to run the method on, or null to call it right away
+     */
+    private static CodeBlock createGrantedCall(MethodModel method, String args, CodeBlock executor) {
+        if (executor == null) {
+            return CodeBlock.of("host.$N($L);\n", method.name, args);
+        }
+        return CodeBlock.of("$L.execute($L);\n", executor, createGrantedTask(method, args));
+    }
+
+    private static TypeSpec createGrantedTask(MethodModel method, String args) {
+        return TypeSpec.anonymousClassBuilder("")
+                .addSuperinterface(Runnable.class)
+                .addMethod(MethodSpec.methodBuilder("run")
+                        .addAnnotation(Override.class)
+                        .addModifiers(Modifier.PUBLIC)
+                        .addStatement("host.$N($L)", method.name, args)
+                        .build())
+                .build();
+    }
+
+    /**
+     * The method is granted already when the Checked method is called, run it on the calling
+     * thread unless its RunOn says otherwise.
+     */
+    private static CodeBlock createGrantedAlready(MethodModel method, String onGrantPassingArgs) {
+        if (method.runOn == RequiresPermission.RunOn.INLINE) {
+            return CodeBlock.of("if (permissions == null)" +
+                    "{" +
+                    "" + onGrantPassingArgs + "\n" +
+                    " return;}\n");
+        }
+        StringBuilder args = new StringBuilder();
+        for (ParameterSpec parameterSpec : method.parameters) {
+            args.append(args.length() == 0 ? "" : ", ").append(parameterSpec.name);
+        }
+        CodeBlock.Builder code = CodeBlock.builder().beginControlFlow("if (permissions == null)");
+        if (method.runOn == RequiresPermission.RunOn.MAIN) {
+            code.beginControlFlow("if ($T.isCurrent())", MAIN_THREAD)
+                    .addStatement("host.$N($L)", method.name, args)
+                    .nextControlFlow("else")
+                    .add("$T.post($L);\n", MAIN_THREAD, createGrantedTask(method, args.toString()))
+                    .endControlFlow();
+        } else {
+            code.add(createGrantedCall(method, args.toString(), executorOf(method)));
+        }
+        return code.addStatement("return")
+                .endControlFlow()
+                .build();
+    }
+
+    /**
+     * The Async variant of a method completes a CompletableFuture with the value of the method, or
+     * a GrantResult for a void one. Its AsyncRequest is the pending request, so the future
+     * completes right from the result.
+     */
+    private static List<MethodSpec> createAsyncMethods(HostModel host, MethodModel method,
+                                                       FieldSpec permissionsField) {
+        String asyncName = method.name + "Async";
+        boolean isVoid = method.returnType.equals(TypeName.VOID);
+        TypeName valueType = isVoid ? GRANT_RESULT : method.returnType.box();
+        TypeName requestType = ParameterizedTypeName.get(ASYNC_REQUEST, host.hostClassName, valueType);
+
+        StringBuilder args = new StringBuilder();
+        for (ParameterSpec parameterSpec : method.parameters) {
+            args.append(args.length() == 0 ? "" : ", ").append(parameterSpec.name);
+        }
+        MethodSpec.Builder call = MethodSpec.methodBuilder("call")
+                .addAnnotation(Override.class)
+                .addModifiers(Modifier.PROTECTED)
+                .addParameter(host.hostClassName, "host")
+                .returns(valueType);
+        if (isVoid) {
+            call.addStatement("host.$N($L)", method.name, args)
+                    .addStatement("return $T.GRANTED", GRANT_RESULT);
+        } else {
+            call.addStatement("return host.$N($L)", method.name, args);
+        }
+        CodeBlock executor = method.runOn == RequiresPermission.RunOn.MAIN
+                ? CodeBlock.of("$T.executor()", MAIN_THREAD) : executorOf(method);
+        // The callbacks' host parameter shadows the one of the method, so it is not captured.
+        TypeSpec.Builder request = TypeSpec.anonymousClassBuilder("host, $L",
+                executor == null ? CodeBlock.of("null") : executor)
+                .superclass(requestType)
+                .addMethod(call.build());
+        if (method.onDeniedMethod != null) {
+            request.addMethod(MethodSpec.methodBuilder("whenDenied")
+                    .addAnnotation(Override.class)
+                    .addModifiers(Modifier.PROTECTED)
+                    .addParameter(host.hostClassName, "host")
+                    .addStatement("host.$N()", method.onDeniedMethod)
+                    .build());
+        }
+        if (method.onPartiallyGrantedMethod != null) {
+            request.addMethod(MethodSpec.methodBuilder("whenPartiallyGranted")
+                    .addAnnotation(Override.class)
+                    .addModifiers(Modifier.PROTECTED)
+                    .addParameter(host.hostClassName, "host")
+                    .addParameter(String[].class, "granted")
+                    .addParameter(String[].class, "denied")
+                    .addStatement("host.$N(granted, denied)", method.onPartiallyGrantedMethod)
+                    .build());
+        }
+        if (isVoid) {
+            request.addMethod(MethodSpec.methodBuilder("valueOfDenied")
+                    .addAnnotation(Override.class)
+                    .addModifiers(Modifier.PROTECTED)
+                    .addParameter(GRANT_RESULT, "result")
+                    .returns(GRANT_RESULT)
+                    .addStatement("return result")
+                    .build());
+        }
+
+        MethodSpec entry = MethodSpec.methodBuilder(asyncName)
+                .addJavadoc(isVoid
+                        ? "@return completes with the result of the request, after $N ran if granted\n"
+                        : "@return completes with the value of $N, or with a PermissionDeniedException\n",
+                        method.name)
+                .addParameters(method.parameters)
+                .addParameter(host.hostClassName, "host", FINAL)
+                .returns(ParameterizedTypeName.get(COMPLETABLE_FUTURE, valueType))
+                .addStatement("$T request = $L", requestType, request.build())
+                .addStatement("$N(request, host)", asyncName)
+                .addStatement("return request.future()")
+                .addModifiers(Modifier.STATIC)
+                .addModifiers(Modifier.FINAL)
+                .build();
+
+        ParameterSpec requestParameter = ParameterSpec.builder(requestType, "request", FINAL).build();
+        MethodSpec start = MethodSpec.methodBuilder(asyncName)
+                .addParameter(requestParameter)
+                .addParameter(host.hostClassName, "host", FINAL)
+                .addStatement("String permissions[] = $T.missing($L, $N)",
+                        PERMISSIONS, host.kind.contextExpression, permissionsField)
+                .beginControlFlow("if (permissions == null)")
+                .addStatement("request.grant(host)")
+                .addStatement("return")
+                .endControlFlow()
+                .addCode(createHandOffToMainThread(asyncName, ImmutableList.of(requestParameter)))
+                .addCode(method.beforeMethod == null ? CodeBlock.of("")
+                        : CodeBlock.of("host.$N();\n", method.beforeMethod))
+                .addStatement("int code = $L", method.requestCode)
+                .addStatement("boolean start = PENDING_REQUESTS.add(code, $N, request)", permissionsField)
+                .addCode("// Waits for the result of a request in flight.\n")
+                .addStatement("if (!start) return")
+                .addStatement("$T.submit(LAUNCHER, host, permissions, code)", REQUEST_SCHEDULER)
+                .addModifiers(Modifier.PRIVATE)
+                .addModifiers(Modifier.STATIC)
+                .build();
+
+        List<MethodSpec> methods = new ArrayList<>(2);
+        methods.add(entry);
+        methods.add(start);
+        return methods;
+    }
+
+    /**
+     * The group request asks for the permissions of all methods of the group. It is in flight as a
+     * GroupRequest, so calls of the methods meanwhile wait for its result instead of opening
+     * dialogs of their own.
+     */
+    private static MethodSpec createMethodForGroup(HostModel host, GroupModel group, FieldSpec permissionsField) {
+        MethodSpec.Builder methodSpecBuilder = MethodSpec.methodBuilder(group.methodName)
+                .addJavadoc("Ask for the permissions of group $L at once.\n", group.name)
+                .addParameter(host.hostClassName, "host", FINAL)
+                .addStatement("String permissions[] = $T.missing($L, $N)",
+                        PERMISSIONS, host.kind.contextExpression, permissionsField)
+                .addStatement("if (permissions == null) return")
+                .addCode(createHandOffToMainThread(group.methodName, ImmutableList.<ParameterSpec>of()))
+                .addStatement("int code = $L", group.requestCode)
+                .addStatement("boolean start = PENDING_REQUESTS.add(code, $N, new $T<$T>(host))",
+                        permissionsField, GROUP_REQUEST, host.hostClassName)
+                .addCode("// Waits for the result of a request in flight.\n")
+                .addStatement("if (!start) return");
+        return methodSpecBuilder
+                .addStatement("$T.submit(LAUNCHER, host, permissions, code)", REQUEST_SCHEDULER)
+                .addModifiers(Modifier.STATIC)
+                .addModifiers(Modifier.FINAL)
+                .build();
+    }
+
+    /**
+     * Only the permissions Permissions.missing returns are requested. It looks them up in the
+     * process wide GrantStateCache and checks the others with the backend in one batch.
+     *
+     * @param pendingFields fields to keep the request in for {@link Dispatch#SWITCH}, or null
+     */
+    private static MethodSpec createMethodForRequiresPermission(HostModel host, MethodModel method,
+                                                                FieldSpec permissionsField,
+                                                                List<FieldSpec> pendingFields) {
+        List<ParameterSpec> parameterSpecs = method.parameters;
+
+        StringBuilder onGrantPassingArgs = new StringBuilder("host." + method.name + "(");
+        for (int i = 0; i < parameterSpecs.size(); i++) {
+            ParameterSpec parameterSpec = parameterSpecs.get(i);
+            if (i != parameterSpecs.size() - 1)
+                onGrantPassingArgs.append(parameterSpec.name).append(", ");
+            else onGrantPassingArgs.append(parameterSpec.name);
+        }
+        onGrantPassingArgs.append(");");
+
+        // OnBefore.
+        String onBeforeCode = method.beforeMethod == null ? ""
+                : "host." + method.beforeMethod + "();\n";
+
+        // Grant and deny path of the request.
+        // The callbacks' host parameter shadows the one of the method, so it is not captured.
+        CodeBlock executor = executorOf(method);
+        TypeSpec.Builder pendingRequest = TypeSpec.anonymousClassBuilder(
+                executor == null ? "host" : "host, $L", executor)
+                .superclass(ParameterizedTypeName.get(PENDING_REQUEST, host.hostClassName))
+                .addMethod(MethodSpec.methodBuilder("onGranted")
+                        .addAnnotation(Override.class)
+                        .addModifiers(Modifier.PUBLIC)
+                        .addParameter(host.hostClassName, "host")
+                        .addCode(onGrantPassingArgs.toString() + "\n")
+                        .build());
+        if (method.onDeniedMethod != null) {
+            pendingRequest.addMethod(MethodSpec.methodBuilder("onDenied")
+                    .addAnnotation(Override.class)
+                    .addModifiers(Modifier.PUBLIC)
+                    .addParameter(host.hostClassName, "host")
+                    .addStatement("host.$N()", method.onDeniedMethod)
+                    .build());
+        }
+        if (method.onPartiallyGrantedMethod != null) {
+            pendingRequest.addMethod(MethodSpec.methodBuilder("onPartiallyGranted")
+                    .addAnnotation(Override.class)
+                    .addModifiers(Modifier.PUBLIC)
+                    .addParameter(host.hostClassName, "host")
+                    .addParameter(String[].class, "granted")
+                    .addParameter(String[].class, "denied")
+                    .addStatement("host.$N(granted, denied)", method.onPartiallyGrantedMethod)
+                    .build());
+        }
+        CodeBlock.Builder pending = CodeBlock.builder();
+        if (pendingFields != null) {
+            // The fields keep one request. Another call meanwhile waits for its result like with
+            // the closure dispatch, and so does a call whose permissions a group asks for.
+            pending.addStatement("sweep()")
+                    .beginControlFlow("if ($N != null || PENDING_REQUESTS.isCovered(code, $N))",
+                            pendingFields.get(0), permissionsField)
+                    .add("// Waits for the result of a request in flight.\n")
+                    .addStatement("PENDING_REQUESTS.add(code, $N, $L)", permissionsField, pendingRequest.build())
+                    .addStatement("return")
+                    .endControlFlow()
+                    .addStatement("$N = new $T<>(host)", pendingFields.get(0), WeakReference.class)
+                    .addStatement("PENDING_SINCE[$L] = System.nanoTime()", host.methods.indexOf(method));
+            for (int i = 1; i < pendingFields.size(); i++) {
+                pending.addStatement("$N = $N", pendingFields.get(i), parameterSpecs.get(i - 1));
+            }
+        } else {
+            pending.addStatement("boolean start = PENDING_REQUESTS.add(code, $N, $L)",
+                    permissionsField, pendingRequest.build())
+                    .add("// Waits for the result of a request in flight.\n")
+                    .addStatement("if (!start) return");
+        }
+
+        MethodSpec.Builder methodSpecBuilder =
+                MethodSpec.methodBuilder(method.checkedName)
+                        .addParameters(parameterSpecs)
+                        .addParameter(host.hostClassName, "host", FINAL)
+                        .addStatement("String permissions[] = $T.missing($L, $N)",
+                                PERMISSIONS, host.kind.contextExpression, permissionsField)
+                        .addCode(createGrantedAlready(method, onGrantPassingArgs.toString()))
+                        .addCode(createHandOffToMainThread(method.checkedName, parameterSpecs))
+                        .addCode(onBeforeCode)
+                        .addStatement("int code = $L", method.requestCode)
+                        .addCode(pending.build())
+                        .addStatement("$T.submit(LAUNCHER, host, permissions, code)", REQUEST_SCHEDULER)
+                        .addModifiers(Modifier.STATIC)
+                        .addModifiers(Modifier.FINAL);
+        return methodSpecBuilder.build();
+    }
+}
@@ -3,45 +3,47 @@ package github.tornaco.permission.compiler;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.squareup.javapoet.ClassName;
-import com.squareup.javapoet.CodeBlock;
-import com.squareup.javapoet.FieldSpec;
 import com.squareup.javapoet.JavaFile;
-import com.squareup.javapoet.MethodSpec;
 import com.squareup.javapoet.ParameterSpec;
-import com.squareup.javapoet.ParameterizedTypeName;
 import com.squareup.javapoet.TypeName;
-import com.squareup.javapoet.TypeSpec;
 import com.squareup.javapoet.TypeVariableName;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import javax.annotation.processing.AbstractProcessor;
 import javax.annotation.processing.ProcessingEnvironment;
 import javax.annotation.processing.RoundEnvironment;
 import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
 import javax.lang.model.SourceVersion;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.ElementKind;
 import javax.lang.model.element.ExecutableElement;
-import javax.lang.model.element.Modifier;
 import javax.lang.model.element.NestingKind;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.element.TypeParameterElement;
 import javax.lang.model.element.VariableElement;
-import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.TypeKind;
 import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
 import javax.lang.model.util.Types;
 
-import github.tornaco.permission.compiler.common.Collections;
 import github.tornaco.permission.compiler.common.Logger;
-import github.tornaco.permission.compiler.common.MoreElements;
-import github.tornaco.permission.compiler.common.MoreTypes;
-import github.tornaco.permission.compiler.common.SettingsProvider;
 import github.tornaco.permission.requester.RequiresPermission;
 import github.tornaco.permission.requester.RuntimePermissions;
 
@@ -53,43 +55,343 @@ import static javax.lang.model.element.Modifier.STATIC;
 /**
  * Created by guohao4 on 2017/9/6.
  * Email: Tornaco@163.com
+ * <p>
+ * This processor is registered as a dynamic Gradle incremental processor, see
+ * META-INF/gradle/incremental.annotation.processors and {@link #getSupportedOptions()}. It is
+ * isolating, so each requester must be derived from exactly one @RuntimePermissions type (and its
+ * supertypes), unless {@link #OPTION_REGISTRY} asks for the module wide registry, which makes it
+ * aggregating.
+ * <p>
+ * Each round runs in two phases. The hosts are validated and copied into immutable
+ * {@link HostModel}s on the javac thread first, then the models are rendered by the
+ * {@link RequesterGenerator}, in parallel when {@link #OPTION_PARALLELISM} allows, and the files
+ * are written back on the javac thread in the order of their names.
+ * <p>
+ * A host is handled once per compilation. Hosts that extend or use a type which is not resolved
+ * yet, e.g. a base class generated by another processor, are deferred to the next round and
+ * looked up again by name, since elements of an earlier round must not be reused.
  */
 @SupportedAnnotationTypes("github.tornaco.permission.requester.RuntimePermissions")
+@SupportedOptions({RequestCodes.OPTION_NAMESPACE, Logger.OPTION_LEVEL, Dispatch.OPTION_DISPATCH,
+        RuntimePermissionsCompiler.OPTION_VERIFY_FORMATTING,
+        RuntimePermissionsCompiler.OPTION_PARALLELISM,
+        RuntimePermissionsCompiler.OPTION_REGISTRY,
+        RuntimePermissionsCompiler.OPTION_ASYNC})
 public class RuntimePermissionsCompiler extends AbstractProcessor {
 
-    private static final AtomicInteger REQUEST_CODE = new AtomicInteger(0x999);
-
-    private static final boolean DEBUG = true;
+    /**
+     * Check every generated file formats the same with the streaming, the single pass and the
+     * original three pass Reformatter.
+     */
+    static final String OPTION_VERIFY_FORMATTING = "permissionRequester.verifyFormatting";
+
+    /**
+     * Number of threads to render hosts with, defaults to the number of processors.
+     */
+    static final String OPTION_PARALLELISM = "permissionRequester.parallelism";
+
+    /**
+     * Qualified name of the registry class to generate with every @RequiresPermission method of
+     * the module, none if not set. The registry routes results to the requesters, which are made
+     * public for it.
+     */
+    static final String OPTION_REGISTRY = "permissionRequester.registry";
+
+    /**
+     * Also generate an Async variant of every method, returning a CompletableFuture. Needs the
+     * closure dispatch.
+     */
+    static final String OPTION_ASYNC = "permissionRequester.async";
+
+    private static final String GRADLE_ISOLATING = "org.gradle.annotation.processing.isolating";
+    private static final String GRADLE_AGGREGATING = "org.gradle.annotation.processing.aggregating";
 
     private ErrorReporter mErrorReporter;
+    private Logger mLogger;
     private Types mTypes;
+    private Elements mElements;
+    private int mRequestCodeNamespace;
+    private HostKindCache mHostKinds;
+    private boolean mVerifyFormatting;
+    private int mParallelism;
+    private Dispatch mDispatch = Dispatch.CLOSURE;
+    private boolean mAsync;
+
+    // Qualified names of the hosts handled already, generated or failed.
+    private final Set<String> mProcessedHosts = new HashSet<>();
+    // Qualified names of the hosts waiting for their types to be resolved.
+    private final Set<String> mDeferredHosts = new LinkedHashSet<>();
+
+    private ClassName mRegistryName;
+    // Shared by all hosts with the registry, so its codes are unique in the module.
+    private RequestCodes mModuleRequestCodes;
+    // Generated hosts by binary name, for the registry.
+    private final Map<String, HostModel> mRegistryHosts = new TreeMap<>();
+    private boolean mRegistryWritten;
 
     @Override
     public synchronized void init(ProcessingEnvironment processingEnvironment) {
         super.init(processingEnvironment);
         mErrorReporter = new ErrorReporter(processingEnvironment);
         mTypes = processingEnvironment.getTypeUtils();
+        mElements = processingEnvironment.getElementUtils();
+        try {
+            mLogger = Logger.create(processingEnvironment);
+        } catch (IllegalArgumentException e) {
+            mErrorReporter.reportError(e.getMessage(), null);
+            mLogger = new Logger(processingEnvironment.getMessager(), Logger.Level.OFF);
+        }
+        mVerifyFormatting = Boolean.parseBoolean(processingEnvironment.getOptions().get(OPTION_VERIFY_FORMATTING));
+        try {
+            mRequestCodeNamespace = RequestCodes.parseNamespace(processingEnvironment.getOptions());
+        } catch (IllegalArgumentException e) {
+            mErrorReporter.reportError(e.getMessage(), null);
+        }
+        try {
+            mDispatch = Dispatch.parse(processingEnvironment.getOptions());
+        } catch (IllegalArgumentException e) {
+            mErrorReporter.reportError(e.getMessage(), null);
+        }
+        mAsync = Boolean.parseBoolean(processingEnvironment.getOptions().get(OPTION_ASYNC));
+        if (mAsync && mDispatch != Dispatch.CLOSURE) {
+            mErrorReporter.reportWarning(OPTION_ASYNC + " needs the closure dispatch, no Async methods are generated", null);
+            mAsync = false;
+        }
+        mParallelism = Runtime.getRuntime().availableProcessors();
+        String parallelism = processingEnvironment.getOptions().get(OPTION_PARALLELISM);
+        if (parallelism != null) {
+            try {
+                mParallelism = Integer.parseInt(parallelism.trim());
+            } catch (NumberFormatException e) {
+                mParallelism = 0;
+            }
+            if (mParallelism < 1) {
+                mErrorReporter.reportError("Illegal value for " + OPTION_PARALLELISM + ": " + parallelism, null);
+                mParallelism = 1;
+            }
+        }
+        String registry = processingEnvironment.getOptions().get(OPTION_REGISTRY);
+        if (registry != null && registry.trim().length() > 0) {
+            registry = registry.trim();
+            int dot = registry.lastIndexOf('.');
+            if (SourceVersion.isName(registry)) {
+                mRegistryName = ClassName.get(dot < 0 ? "" : registry.substring(0, dot), registry.substring(dot + 1));
+                mModuleRequestCodes = new RequestCodes(mRequestCodeNamespace);
+            } else {
+                mErrorReporter.reportError("Illegal value for " + OPTION_REGISTRY + ": " + registry, null);
+            }
+        }
+    }
+
+    @Override
+    public Set<String> getSupportedOptions() {
+        // Gradle asks for the incremental mode of a dynamic processor after init.
+        Set<String> options = new HashSet<>(super.getSupportedOptions());
+        options.add(mRegistryName == null ? GRADLE_ISOLATING : GRADLE_AGGREGATING);
+        return options;
     }
 
     @Override
     public boolean process(Set<? extends TypeElement> set, RoundEnvironment roundEnvironment) {
+        if (roundEnvironment.processingOver()) {
+            reportUnresolvedHosts();
+            return true;
+        }
+
         Collection<? extends Element> annotatedElements =
                 roundEnvironment.getElementsAnnotatedWith(RuntimePermissions.class);
 
-        List<TypeElement> types = new ImmutableList.Builder<TypeElement>()
-                .addAll(ElementFilter.typesIn(annotatedElements))
-                .build();
+        // Sorted by name, so the module wide request codes do not depend on the source order.
+        Map<String, TypeElement> types = new TreeMap<>();
+        for (String name : mDeferredHosts) {
+            TypeElement deferred = mElements.getTypeElement(name);
+            if (deferred != null) types.put(name, deferred);
+        }
+        mDeferredHosts.clear();
+        for (TypeElement type : ElementFilter.typesIn(annotatedElements)) {
+            types.put(type.getQualifiedName().toString(), type);
+        }
+
+        mLogger.info("Round with %s host(s)", types.size());
+
+        // Phase 1, extract the models. Sorted by name so that files are written in a stable order.
+        mHostKinds = new HostKindCache();
+        Map<String, HostModel> models = new TreeMap<>();
+        Map<String, TypeElement> originatingTypes = new HashMap<>();
+        for (TypeElement type : types.values()) {
+            String name = type.getQualifiedName().toString();
+            if (mProcessedHosts.contains(name)) {
+                mLogger.debug("Host %s is processed already", name);
+                continue;
+            }
+            if (hasUnresolvedTypes(type)) {
+                mLogger.debug("Host %s has unresolved types, deferred to the next round", name);
+                mDeferredHosts.add(name);
+                continue;
+            }
+            if (mRegistryWritten) {
+                mErrorReporter.reportError("Host " + name + " showed up after " + mRegistryName
+                        + " was generated, it will be missing from the registry", type);
+            }
+            mProcessedHosts.add(name);
+            HostModel model;
+            try {
+                model = extractHost(type);
+            } catch (AbortProcessingException e) {
+                // Already reported, go on with the other hosts.
+                continue;
+            }
+            models.put(model.qualifiedClassName(), model);
+            originatingTypes.put(model.qualifiedClassName(), type);
+        }
+
+        // Phase 2, render.
+        List<HostModel> hosts = new ArrayList<>(models.values());
+        List<JavaFile> files = render(hosts, originatingTypes);
+
+        // Phase 3, write.
+        for (int i = 0; i < hosts.size(); i++) {
+            JavaFile source = files.get(i);
+            if (source == null) continue;
+            String fqClassName = hosts.get(i).qualifiedClassName();
+            TypeElement type = originatingTypes.get(fqClassName);
+            if (mVerifyFormatting) verifyFormatting(source, type);
+            // The source is reformatted while written.
+            writeSourceFile(processingEnv, fqClassName, source, type);
+            mLogger.info("Generated %s", fqClassName);
+            mRegistryHosts.put(hosts.get(i).hostBinaryName, hosts.get(i));
+        }
 
-        types.forEach(this::processType);
+        // Every host is known once a round brings no new ones and none waits for its types.
+        if (mRegistryName != null && !mRegistryWritten && models.isEmpty() && mDeferredHosts.isEmpty()) {
+            writeRegistry();
+        }
 
         return true;
     }
 
-    private void processType(TypeElement type) {
+    private void writeRegistry() {
+        mRegistryWritten = true;
+        List<HostModel> hosts = new ArrayList<>(mRegistryHosts.values());
+        checkRegistryCodes(hosts);
+        JavaFile source;
+        try {
+            source = RegistryGenerator.generate(mRegistryName, hosts);
+        } catch (RuntimeException e) {
+            mErrorReporter.reportError("Could not generate " + mRegistryName + ": " + e, null);
+            mLogger.warn(e, "Could not generate %s", mRegistryName);
+            return;
+        }
+        // Aggregating, Gradle does not need the originating elements.
+        writeSourceFile(processingEnv, mRegistryName.toString(), source);
+        mLogger.info("Generated %s with %s host(s)", mRegistryName, hosts.size());
+    }
+
+    /**
+     * The module wide allocator hands out every code once, so this only fails if hosts were
+     * allocated apart, e.g. by an older compiler.
+     */
+    private void checkRegistryCodes(List<HostModel> hosts) {
+        Map<Integer, String> owners = new HashMap<>();
+        for (HostModel host : hosts) {
+            for (MethodModel method : host.methods) {
+                checkRegistryCode(owners, method.requestCode, host.hostBinaryName + "#" + method.name);
+            }
+            for (GroupModel group : host.groups) {
+                checkRegistryCode(owners, group.requestCode, host.hostBinaryName + "@" + group.name);
+            }
+        }
+    }
+
+    private void checkRegistryCode(Map<Integer, String> owners, int code, String owner) {
+        String previous = owners.put(code, owner);
+        if (previous != null) {
+            mErrorReporter.reportError(String.format("Request code 0x%x of %s is also used by %s, "
+                    + "%s can not route its results", code, owner, previous, mRegistryName.simpleName()), null);
+        }
+    }
+
+    /**
+     * @return true if the superclass chain of the host or a parameter of one of its
+     * {@link RequiresPermission} methods is not resolved yet
+     */
+    private boolean hasUnresolvedTypes(TypeElement type) {
+        if (mHostKinds.kindOf(type) == HostKind.UNRESOLVED) return true;
+        for (ExecutableElement e : ElementFilter.methodsIn(type.getEnclosedElements())) {
+            if (e.getAnnotation(RequiresPermission.class) == null) continue;
+            for (VariableElement ve : e.getParameters()) {
+                if (ve.asType().getKind() == TypeKind.ERROR) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Called in the last round, when no more types will be generated. Javac reports the missing
+     * types itself, so only tell which requesters are not generated because of them.
+     */
+    private void reportUnresolvedHosts() {
+        for (String name : mDeferredHosts) {
+            mErrorReporter.reportWarning("Requester of " + name + " is not generated, "
+                    + "some of its types could not be resolved", mElements.getTypeElement(name));
+        }
+        mDeferredHosts.clear();
+    }
+
+    /**
+     * @return the files of the hosts in the same order, null for a host that failed
+     */
+    private List<JavaFile> render(List<HostModel> hosts, Map<String, TypeElement> originatingTypes) {
+        List<JavaFile> files = new ArrayList<>(hosts.size());
+        if (mParallelism == 1 || hosts.size() < 2) {
+            for (HostModel host : hosts) {
+                try {
+                    files.add(RequesterGenerator.generate(host, mDispatch, mAsync, mRegistryName != null));
+                } catch (RuntimeException e) {
+                    reportRenderError(e, originatingTypes.get(host.qualifiedClassName()));
+                    files.add(null);
+                }
+            }
+            return files;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(Math.min(mParallelism, hosts.size()));
+        try {
+            List<Future<JavaFile>> futures = new ArrayList<>(hosts.size());
+            for (HostModel host : hosts) {
+                futures.add(pool.submit(() -> RequesterGenerator.generate(host, mDispatch, mAsync, mRegistryName != null)));
+            }
+            for (int i = 0; i < hosts.size(); i++) {
+                try {
+                    files.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    reportRenderError(e.getCause(), originatingTypes.get(hosts.get(i).qualifiedClassName()));
+                    files.add(null);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(e);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return files;
+    }
+
+    private void reportRenderError(Throwable t, TypeElement type) {
+        mErrorReporter.reportError("Could not generate requester: " + t, type);
+        mLogger.warn(t, "Could not generate the requester of %s", type);
+    }
+
+    /**
+     * Validate the host and copy what the generator needs into a {@link HostModel}.
+     *
+     * @throws AbortProcessingException if the host is not valid, after reporting it
+     */
+    private HostModel extractHost(TypeElement type) {
         RuntimePermissions annotation = type.getAnnotation(RuntimePermissions.class);
         if (annotation == null) {
-            mErrorReporter.abortWithError("@RuntimePermissions annotation is null on Type %s", type);
-            return;
+            mErrorReporter.abortWithError("@RuntimePermissions annotation is null on Type " + type, type);
         }
         if (type.getKind() != ElementKind.CLASS) {
             mErrorReporter.abortWithError("@RuntimePermissions" + " only applies to class", type);
@@ -107,258 +409,175 @@ public class RuntimePermissionsCompiler extends AbstractProcessor {
             mErrorReporter.abortWithError("classNameSubFix should not be empty", type);
         }
         String fqClassName = generatedSubclassName(type, 0, annotation.classNameSubFix());
-        // class name
-        String className = CompilerUtil.simpleNameOf(fqClassName);
-        // Create source.
-        String source = generateClass(type, className, type.getSimpleName().toString(), false);
 
-        source = Reformatter.fixup(source);
-        writeSourceFile(processingEnv, fqClassName, source, type);
-    }
+        HostKind hostKind = mHostKinds.kindOf(type);
+        mLogger.debug("Host %s is %s", type, hostKind);
 
-    private String generatedSubclassName(TypeElement type, int depth, String subFix) {
-        return generatedClassName(type, null, Strings.repeat("$", depth) + subFix);
-    }
-
-    private String generatedClassName(TypeElement type, String prefix, String subFix) {
-        String name = type.getSimpleName().toString();
-        while (type.getEnclosingElement() instanceof TypeElement) {
-            type = (TypeElement) type.getEnclosingElement();
-            name = type.getSimpleName() + "_" + name;
+        // Add type params.
+        ImmutableList.Builder<TypeVariableName> typeVariables = ImmutableList.builder();
+        for (TypeParameterElement typeParameterElement : type.getTypeParameters()) {
+            typeVariables.add(TypeVariableName.get(typeParameterElement.toString()));
         }
-        String pkg = CompilerUtil.packageNameOf(type);
-        String dot = Strings.isNullOrEmpty(pkg) ? "" : ".";
-        String prefixChecked = Strings.isNullOrEmpty(prefix) ? "" : prefix;
-        String subFixChecked = Strings.isNullOrEmpty(subFix) ? "" : subFix;
-        return pkg + dot + prefixChecked + name + subFixChecked;
+
+        // Without the registry request codes are allocated per type, so the output does not depend
+        // on other types. Groups come after the methods, so they do not change the codes of the methods.
+        RequestCodes requestCodes = mModuleRequestCodes != null
+                ? mModuleRequestCodes : new RequestCodes(mRequestCodeNamespace);
+        ImmutableList<MethodModel> methods = extractMethods(type, hostKind, requestCodes);
+
+        return new HostModel(CompilerUtil.packageNameOf(type),
+                CompilerUtil.simpleNameOf(fqClassName),
+                ClassName.bestGuess(type.getQualifiedName().toString()),
+                mElements.getBinaryName(type).toString(),
+                typeVariables.build(),
+                hostKind,
+                methods,
+                extractGroups(type, methods, requestCodes));
     }
 
+    private ImmutableList<MethodModel> extractMethods(TypeElement typeElement, HostKind hostKind,
+                                                      RequestCodes requestCodes) {
+        ImmutableList.Builder<MethodModel> methods = ImmutableList.builder();
 
-    private String generateClass(TypeElement type, String className, String ifaceToImpl, boolean isFinal) {
-        if (type == null) {
-            mErrorReporter.abortWithError("generateClass was invoked with null type", null);
-            return null;
-        }
-        if (className == null) {
-            mErrorReporter.abortWithError("generateClass was invoked with null class name", type);
-            return null;
-        }
-        if (ifaceToImpl == null) {
-            mErrorReporter.abortWithError("generateClass was invoked with null iface", type);
-            return null;
-        }
-
-        String pkg = CompilerUtil.packageNameOf(type);
+        for (ExecutableElement e : ElementFilter.methodsIn(typeElement.getEnclosedElements())) {
+            RequiresPermission requiresPermission = e.getAnnotation(RequiresPermission.class);
+            if (requiresPermission == null) continue;
+            mLogger.debug("RequiresPermission found @:%s", e);
 
-        ClassName strClz = ClassName.get("java.lang", "Runnable");
-        ClassName intClz = ClassName.get("java.lang", "Integer");
-        ClassName mapClz = ClassName.get("java.util", "Map");
-        TypeName mapOfString = ParameterizedTypeName.get(mapClz, intClz, strClz);
-        FieldSpec onGrantMethodsMap = FieldSpec.builder(mapOfString, "ON_GRANT_METHODS_MAP")
-                .addModifiers(Modifier.STATIC, Modifier.FINAL, Modifier.PRIVATE).build();
-
-        FieldSpec onDenyMethodsMap = FieldSpec.builder(mapOfString, "ON_DENY_METHODS_MAP")
-                .addModifiers(Modifier.STATIC, Modifier.FINAL, Modifier.PRIVATE).build();
-
-        TypeSpec.Builder subClass = TypeSpec.classBuilder(className)
-                .addField(boolean.class, "DEBUG", Modifier.STATIC, Modifier.FINAL, Modifier.PRIVATE)
-                .addStaticBlock(CodeBlock.of("DEBUG = " + DEBUG + ";\n"))
-                .addField(onGrantMethodsMap)
-                .addField(onDenyMethodsMap)
-                .addStaticBlock(CodeBlock.of("ON_GRANT_METHODS_MAP = new $T<>();\n", HashMap.class))
-                .addStaticBlock(CodeBlock.of("ON_DENY_METHODS_MAP = new $T<>();\n", HashMap.class))
-                .addMethods(createMethodSpecs(type));
+            // Check host is Activity or Fragment.
+            if (!hostKind.isSupported()) {
+                mErrorReporter.abortWithError("Only Activity or Fragment is accepted", typeElement);
+            }
 
-        // Add type params.
-        List l = type.getTypeParameters();
-        Collections.consumeRemaining(l, o -> {
-            TypeParameterElement typeParameterElement = (TypeParameterElement) o;
-            subClass.addTypeVariable(TypeVariableName.get(typeParameterElement.toString()));
-        });
-
-        if (isFinal) subClass.addModifiers(FINAL);
-
-        JavaFile javaFile = JavaFile.builder(pkg, subClass.build())
-                .addFileComment(SettingsProvider.FILE_COMMENT)
-                .skipJavaLangImports(true)
-                .build();
-        return javaFile.toString();
+            try {
+                methods.add(extractMethod(typeElement, e, requestCodes, requiresPermission));
+            } catch (AbortProcessingException abort) {
+                throw abort;
+            } catch (RuntimeException t) {
+                mErrorReporter.abortWithError(String.valueOf(t), e);
+            }
+        }
+        return methods.build();
     }
 
-    private Iterable<MethodSpec> createMethodSpecs(TypeElement typeElement) {
-        List<MethodSpec> methodSpecs = new ArrayList<>();
+    /**
+     * Collect the groups of the methods, with the union of their permissions.
+     */
+    private ImmutableList<GroupModel> extractGroups(TypeElement typeElement, ImmutableList<MethodModel> methods,
+                                                    RequestCodes requestCodes) {
+        Set<String> methodNames = new HashSet<>();
+        for (MethodModel method : methods) {
+            methodNames.add(method.checkedName);
+        }
+        Map<String, Set<String>> groupPermissions = new LinkedHashMap<>();
+        for (ExecutableElement e : ElementFilter.methodsIn(typeElement.getEnclosedElements())) {
+            RequiresPermission requiresPermission = e.getAnnotation(RequiresPermission.class);
+            if (requiresPermission == null) continue;
+            for (String group : requiresPermission.groups()) {
+                if (!SourceVersion.isIdentifier(group) || SourceVersion.isKeyword(group)) {
+                    mErrorReporter.abortWithError("Illegal group name: \"" + group + "\"", e);
+                }
+                if (!groupPermissions.containsKey(group)) {
+                    groupPermissions.put(group, new LinkedHashSet<String>());
+                }
+                groupPermissions.get(group).addAll(Arrays.asList(requiresPermission.value()));
+            }
+        }
 
-        methodSpecs.add(createOnPermissionRequestResultMethod());
+        ImmutableList.Builder<GroupModel> groups = ImmutableList.builder();
+        for (Map.Entry<String, Set<String>> group : groupPermissions.entrySet()) {
+            String name = group.getKey();
+            String methodName = "request" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+            if (!methodNames.add(methodName)) {
+                mErrorReporter.abortWithError("Method " + methodName + " of group " + name
+                        + " is generated already", typeElement);
+            }
+            String key = typeElement.getQualifiedName() + "@group:" + name;
+            groups.add(new GroupModel(name, methodName, ImmutableList.copyOf(group.getValue()),
+                    requestCodes.allocate(key)));
+        }
+        return groups.build();
+    }
 
-        methodSpecs.add(MethodSpec.methodBuilder("checkSelfPermissions")
-                .addParameter(ClassName.get("android.content", "Context"), "context")
-                .addParameter(String[].class, "perms")
-                .addModifiers(Modifier.STATIC)
-                .returns(TypeName.BOOLEAN)
-                .addCode("for (String p : perms) {\n" +
-                        "            if (android.support.v4.app.ActivityCompat.checkSelfPermission(context, p)\n" +
-                        "                    != android.content.pm.PackageManager.PERMISSION_GRANTED) {\n" +
-                        "                return false;\n" +
-                        "            }\n" +
-                        "        }\n" +
-                        "        return true;\n")
-                .build());
+    private MethodModel extractMethod(TypeElement typeElement, ExecutableElement e,
+                                      RequestCodes requestCodes,
+                                      RequiresPermission requiresPermission) {
+        RequiresPermission.Before before = e.getAnnotation(RequiresPermission.Before.class);
+        RequiresPermission.OnDenied onDenied = e.getAnnotation(RequiresPermission.OnDenied.class);
+        RequiresPermission.OnPartiallyGranted onPartiallyGranted =
+                e.getAnnotation(RequiresPermission.OnPartiallyGranted.class);
 
-        List<? extends Element> enclosedElements = typeElement.getEnclosedElements();
+        // Retrieve all params.
+        ImmutableList.Builder<ParameterSpec> parameterSpecs = ImmutableList.builder();
+        for (VariableElement ve : e.getParameters()) {
+            TypeName tn = TypeName.get(ve.asType());
+            parameterSpecs.add(ParameterSpec.builder(tn, ve.toString(), FINAL).build());
+        }
 
-        enclosedElements.stream().filter(e -> e.getKind() == ElementKind.METHOD).forEach(e -> {
-            RequiresPermission requiresPermission = e.getAnnotation(RequiresPermission.class);
-            RequiresPermission.Before before = e.getAnnotation(RequiresPermission.Before.class);
-            RequiresPermission.OnDenied onDenied = e.getAnnotation(RequiresPermission.OnDenied.class);
-            if (requiresPermission != null) {
-                Logger.debug("RequiresPermission found @:" + e);
-                try {
-                    methodSpecs.add(createMethodForRequiresPermission(typeElement, e,
-                            before,
-                            onDenied,
-                            requiresPermission));
-                } catch (Throwable t) {
-//                    StringBuilder stacks = new StringBuilder();
-//                    for (StackTraceElement se : t.getStackTrace()) {
-//                        stacks.append(se.toString()).append("\n");
-//                    }
-                    mErrorReporter.abortWithError(t.getLocalizedMessage(), e);
-                }
-            }
-        });
-        return methodSpecs;
+        String methodName = e.getSimpleName().toString();
+        if (mAsync && requiresPermission.methodSubFix().equals("Async")) {
+            mErrorReporter.abortWithError("methodSubFix Async clashes with the Async methods of " + OPTION_ASYNC, e);
+        }
+        return new MethodModel(methodName,
+                methodName + requiresPermission.methodSubFix(),
+                parameterSpecs.build(),
+                ImmutableList.copyOf(requiresPermission.value()),
+                allocateRequestCode(requestCodes, typeElement, e),
+                before == null ? null : before.value(),
+                onDenied == null ? null : onDenied.value(),
+                onPartiallyGranted == null ? null : onPartiallyGranted.value(),
+                requiresPermission.runOn(),
+                TypeName.get(e.getReturnType()));
     }
 
-    private MethodSpec createOnPermissionRequestResultMethod() {
-        MethodSpec.Builder methodSpecBuilder = MethodSpec.methodBuilder("onRequestPermissionsResult")
-                .addParameter(TypeName.INT, "requestCode")
-                .addParameter(String[].class, "permissions")
-                .addParameter(int[].class, "grantResults")
-                .addStatement("if (!ON_GRANT_METHODS_MAP.containsKey(requestCode)) return")
-                .addStatement("$T<String> permissionsNotGrantList = new $T<String>(permissions.length)",
-                        List.class, ArrayList.class)
-                .beginControlFlow(" for (int i = 0; i < grantResults.length; i++)")
-                .beginControlFlow("if (grantResults[i] != android.content.pm.PackageManager.PERMISSION_GRANTED)")
-                .addStatement("permissionsNotGrantList.add(permissions[i])")
-                .endControlFlow()
-                .endControlFlow()
-                .beginControlFlow(" if (permissionsNotGrantList.size() == 0)")
-                .addCode("// Now call his method.\n")
-                .addStatement("Runnable r = ON_GRANT_METHODS_MAP.remove(requestCode)")
-                .addStatement(" if (r != null) r.run()")
-                .addStatement("return")
-                .endControlFlow()
-                .addStatement("Runnable r2 = ON_DENY_METHODS_MAP.remove(requestCode)")
-                .addStatement(" if (r2 != null) r2.run()")
-                .addModifiers(Modifier.STATIC)
-                .addModifiers(Modifier.FINAL);
-        return methodSpecBuilder.build();
+    private int allocateRequestCode(RequestCodes requestCodes, TypeElement typeElement, ExecutableElement e) {
+        String key = RequestCodes.keyOf(mTypes, typeElement, e);
+        int preferred = requestCodes.preferredCode(key);
+        String owner = requestCodes.ownerOf(preferred);
+        int code = requestCodes.allocate(key);
+        String host = typeElement.getQualifiedName().toString();
+        if (code != preferred && !owner.startsWith(host + "#") && !owner.startsWith(host + "@")) {
+            // Expected with the module wide codes, not worth a note per method.
+            mLogger.debug("Request code 0x%x of %s collides with %s, using 0x%x instead", preferred, key, owner, code);
+        } else if (code != preferred) {
+            mErrorReporter.reportNote(String.format("Request code 0x%x of %s collides with %s, using 0x%x instead",
+                    preferred, key, owner, code), e);
+        }
+        return code;
     }
 
-    @SuppressWarnings("UnnecessaryLocalVariable")
-    private MethodSpec createMethodForRequiresPermission(TypeElement typeElement, Element e,
-                                                         RequiresPermission.Before before,
-                                                         RequiresPermission.OnDenied onDenied,
-                                                         RequiresPermission requiresPermission)
-            throws ClassNotFoundException {
+    private void verifyFormatting(JavaFile source, TypeElement type) {
+        String raw = source.toString();
+        String expected = Reformatter.fixupThreePass(raw);
+        StringWriter streamed = new StringWriter();
+        try (ReformattingWriter writer = new ReformattingWriter(streamed)) {
+            source.writeTo(writer);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        if (!expected.equals(Reformatter.fixup(raw))) {
+            mErrorReporter.reportWarning("Single pass Reformatter output differs", type);
+        }
+        if (!expected.equals(streamed.toString())) {
+            mErrorReporter.reportWarning("ReformattingWriter output differs", type);
+        }
+    }
 
-        String methodName = e.getSimpleName().toString();
+    private String generatedSubclassName(TypeElement type, int depth, String subFix) {
+        return generatedClassName(type, null, Strings.repeat("$", depth) + subFix);
+    }
 
-        // Retrieve all params.
-        List<ParameterSpec> parameterSpecs = new ArrayList<>();
-        ExecutableElement exe = MoreElements.asExecutable(e);
-        List<? extends VariableElement> varList = exe.getParameters();
-        for (VariableElement ve : varList) {
-            TypeMirror tm = ve.asType();
-            TypeName tn = TypeName.get(tm);
-            ParameterSpec ps = ParameterSpec.builder(tn, ve.toString(), FINAL).build();
-            parameterSpecs.add(ps);
-        }
-
-        // Method name.
-        methodName += requiresPermission.methodSubFix();
-
-        // Permissions var.
-        String[] perms = requiresPermission.value();
-        StringBuilder permStatement = new StringBuilder("String permissions[] = new String[]{");
-        for (String ignored : perms) {
-            permStatement.append("$S").append(", ");
-        }
-        permStatement.append("}");
-        Object[] permArgs = perms;
-
-        int requestCode = REQUEST_CODE.incrementAndGet();
-
-        String methodToCallInRunnable = e.getSimpleName().toString();
-        StringBuilder onGrantPassingArgs = new StringBuilder("host." + methodToCallInRunnable + "(");
-        for (int i = 0; i < parameterSpecs.size(); i++) {
-            ParameterSpec parameterSpec = parameterSpecs.get(i);
-            if (i != parameterSpecs.size() - 1)
-                onGrantPassingArgs.append(parameterSpec.name).append(", ");
-            else onGrantPassingArgs.append(parameterSpec.name);
-        }
-        onGrantPassingArgs.append(");");
-
-        // OnBefore.
-        String onBeforeMethodName = null;
-        if (before != null) onBeforeMethodName = before.value();
-        String onBeforeCode = before == null ? ""
-                : "host." + onBeforeMethodName + "();\n";
-
-        // OnDenied.
-        String onDeniedMethodName = null;
-        if (onDenied != null) onDeniedMethodName = onDenied.value();
-        String onDeniedCode = onDenied == null ? ""
-                :
-                "Runnable r2 = new Runnable() {\n" +
-                        "            @Override\n" +
-                        "            public void run() {\n" +
-                        "                host." + onDeniedMethodName + "();\n" +
-                        "            }\n" +
-                        "        };\n" +
-                        "ON_DENY_METHODS_MAP.put(code, r2);\n";
-
-        // Check host is Activity or Fragment.
-        boolean isActivity;
-        boolean isFragment;
-
-        isActivity = MoreTypes.isTargetType(typeElement, "android.app.Activity");
-        isFragment = MoreTypes.isTargetType(typeElement, "android.app.Fragment")
-                || MoreTypes.isTargetType(typeElement, "android.support.v4.app.Fragment");
-
-        if (!isActivity && !isFragment) {
-            mErrorReporter.abortWithError("Only Activity or Fragment is accepted", typeElement);
-        }
-
-        MethodSpec.Builder methodSpecBuilder =
-                MethodSpec.methodBuilder(methodName)
-                        .addParameters(parameterSpecs)
-                        .addParameter(ClassName.bestGuess(typeElement.getQualifiedName().toString()), "host", FINAL)
-                        .addStatement(permStatement.toString(), permArgs)
-                        .addCode(String.format("if (checkSelfPermissions(%s, permissions))" +
-                                        "{" +
-                                        "" + onGrantPassingArgs.toString() + "\n" +
-                                        " return;}\n",
-                                isActivity ? "host" : "host.getActivity()"))
-                        .addCode(onBeforeCode)
-                        .addStatement("int code = $L", requestCode)
-
-                        .addCode("Runnable r = new Runnable() {\n" +
-                                "            @Override\n" +
-                                "            public void run() {\n" +
-                                "                " +
-                                onGrantPassingArgs.toString() + "\n" +
-                                "            }\n" +
-                                "        };\n")
-                        .addStatement("ON_GRANT_METHODS_MAP.put(code, r)")
-                        .addCode(onDeniedCode)
-                        .addStatement(
-                                isActivity ?
-                                        "android.support.v4.app.ActivityCompat.requestPermissions(host, permissions, code)"
-                                        : "host.requestPermissions(permissions, code)")
-                        .addModifiers(Modifier.STATIC)
-                        .addModifiers(Modifier.FINAL);
-        return methodSpecBuilder.build();
+    private String generatedClassName(TypeElement type, String prefix, String subFix) {
+        String name = type.getSimpleName().toString();
+        while (type.getEnclosingElement() instanceof TypeElement) {
+            type = (TypeElement) type.getEnclosingElement();
+            name = type.getSimpleName() + "_" + name;
+        }
+        String pkg = CompilerUtil.packageNameOf(type);
+        String dot = Strings.isNullOrEmpty(pkg) ? "" : ".";
+        String prefixChecked = Strings.isNullOrEmpty(prefix) ? "" : prefix;
+        String subFixChecked = Strings.isNullOrEmpty(subFix) ? "" : subFix;
+        return pkg + dot + prefixChecked + name + subFixChecked;
     }
 
     private void checkModifiersIfNested(TypeElement type) {
@@ -1,10 +1,12 @@
 package github.tornaco.permission.compiler;
 
+import com.squareup.javapoet.JavaFile;
+
 import java.io.IOException;
 import java.io.Writer;
 
 import javax.annotation.processing.ProcessingEnvironment;
-import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.Element;
 import javax.tools.Diagnostic;
 import javax.tools.JavaFileObject;
 
@@ -16,25 +18,32 @@ import javax.tools.JavaFileObject;
 
 public class SourceFiles {
 
+    /**
+     * Write the file straight to the Filer, reformatting it on the way with a
+     * {@link ReformattingWriter}, so the source is never held in memory as a whole.
+     */
     public static void writeSourceFile(ProcessingEnvironment processingEnv,
-                                       String className, String text, TypeElement originatingType) {
+                                       String className, JavaFile javaFile, Element... originatingElements) {
         try {
-            JavaFileObject sourceFile = processingEnv.getFiler().createSourceFile(className, originatingType);
-            Writer writer = sourceFile.openWriter();
+            JavaFileObject sourceFile = processingEnv.getFiler().createSourceFile(className, originatingElements);
+            Writer writer = new ReformattingWriter(sourceFile.openWriter());
             try {
-                writer.write(text);
+                javaFile.writeTo(writer);
             } finally {
                 writer.close();
             }
         } catch (IOException e) {
-            // This should really be an error, but we make it a warning in the hope of resisting Eclipse
-            // bug https://bugs.eclipse.org/bugs/show_bug.cgi?id=367599. If that bug manifests, we may get
-            // invoked more than once for the same file, so ignoring the ability to overwrite it is the
-            // right thing to do. If we are unable to write for some other reason, we should get a compile
-            // error later because user code will have a reference to the code we were supposed to
-            // generate (new AutoValue_Foo() or whatever) and that reference will be undefined.
-            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
-                    "Could not write generated class " + className + ": " + e);
+            reportWriteError(processingEnv, className, e,
+                    originatingElements.length == 0 ? null : originatingElements[0]);
         }
     }
+
+    private static void reportWriteError(ProcessingEnvironment processingEnv, String className,
+                                         IOException e, Element originatingElement) {
+        // The processor writes each host only once per compilation, so a failed write is a real
+        // error and no longer the duplicate write of Eclipse bug
+        // https://bugs.eclipse.org/bugs/show_bug.cgi?id=367599 that used to be reported as a warning.
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                "Could not write generated class " + className + ": " + e, originatingElement);
+    }
 }
@@ -1,28 +1,101 @@
 package github.tornaco.permission.compiler.common;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Locale;
+
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.tools.Diagnostic;
+
 /**
  * Created by Nick@NewStand.org on 2017/4/12 13:35
  * E-Mail: NewStand@163.com
  * All right reserved.
+ * <p>
+ * Leveled logger of the processor, off unless {@link #OPTION_LEVEL} is passed. Messages are
+ * only formatted when their level is enabled, and are printed as notes, or warnings, through the
+ * Messager so they do not end up on the stdout or stderr of the Gradle daemon.
  */
+public class Logger {
+
+    public static final String OPTION_LEVEL = "permissionRequester.logLevel";
+
+    public enum Level {
+        OFF, WARN, INFO, DEBUG
+    }
+
+    private static final String TAG = "PermissionRequester: ";
+
+    private final Messager messager;
+    private final Level level;
+
+    public Logger(Messager messager, Level level) {
+        this.messager = messager;
+        this.level = level;
+    }
+
+    /**
+     * Create a logger with the level given by {@link #OPTION_LEVEL}.
+     *
+     * @throws IllegalArgumentException if the option is not a valid level
+     */
+    public static Logger create(ProcessingEnvironment processingEnv) {
+        String value = processingEnv.getOptions().get(OPTION_LEVEL);
+        Level level = Level.OFF;
+        if (value != null && value.trim().length() > 0) {
+            try {
+                level = Level.valueOf(value.trim().toUpperCase(Locale.US));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Illegal value for " + OPTION_LEVEL + ": " + value
+                        + ", should be one of off, warn, info, debug");
+            }
+        }
+        return new Logger(processingEnv.getMessager(), level);
+    }
+
+    public boolean isLoggable(Level level) {
+        return level != Level.OFF && this.level.compareTo(level) >= 0;
+    }
+
+    public void debug(String message) {
+        if (isLoggable(Level.DEBUG)) print(Level.DEBUG, message);
+    }
 
-public abstract class Logger {
+    public void debug(String message, Object arg) {
+        if (isLoggable(Level.DEBUG)) print(Level.DEBUG, String.format(message, arg));
+    }
+
+    public void debug(String message, Object arg1, Object arg2) {
+        if (isLoggable(Level.DEBUG)) print(Level.DEBUG, String.format(message, arg1, arg2));
+    }
+
+    public void debug(String message, Object... args) {
+        if (isLoggable(Level.DEBUG)) print(Level.DEBUG, String.format(message, args));
+    }
 
-    public static void debug(String message, Object... obj) {
-        System.out.println("---------------------" + String.format(message, obj));
+    public void info(String message, Object arg) {
+        if (isLoggable(Level.INFO)) print(Level.INFO, String.format(message, arg));
     }
 
-    public static void report(String message, Object... obj) {
-        report(new Throwable(), message, obj);
+    public void info(String message, Object... args) {
+        if (isLoggable(Level.INFO)) print(Level.INFO, String.format(message, args));
     }
 
-    public static void report(Throwable throwable, String message, Object... obj) {
-        System.err.println(String.format(message, obj));
-        printStackTrace(throwable);
+    /**
+     * Print the message with the stack trace of the throwable, which the error reported for it
+     * leaves out.
+     */
+    public void warn(Throwable throwable, String message, Object... args) {
+        if (!isLoggable(Level.WARN)) return;
+        StringWriter trace = new StringWriter();
+        throwable.printStackTrace(new PrintWriter(trace));
+        print(Level.WARN, String.format(message, args) + "\n" + trace);
     }
 
-    public static void printStackTrace(Throwable throwable) {
-        if (throwable == null) return;
-        throwable.printStackTrace();
+    private void print(Level level, String message) {
+        // Errors are reported through ErrorReporter, a log line should never fail the build.
+        Diagnostic.Kind kind = level == Level.WARN ? Diagnostic.Kind.WARNING : Diagnostic.Kind.NOTE;
+        messager.printMessage(kind, TAG + message);
     }
 }
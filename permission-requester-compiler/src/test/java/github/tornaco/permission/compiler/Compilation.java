@@ -0,0 +1,147 @@
+package github.tornaco.permission.compiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.annotation.processing.Processor;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Runs javac with the processor on sources in memory, for the tests of the generated code.
+ * <p>
+ * Classes and generated sources are written to a temporary directory. The classes are loaded
+ * from there on top of the test class path, so the runtime, and its process wide state, is the
+ * one of the tests.
+ */
+final class Compilation {
+
+    /**
+     * Stub of the framework class, the generated code only needs the type of the host.
+     */
+    static final JavaFileObject ACTIVITY = source("android.app.Activity",
+            "package android.app;",
+            "public class Activity {",
+            "}");
+
+    private final File directory;
+    private final boolean success;
+    private final List<Diagnostic<? extends JavaFileObject>> diagnostics;
+    private ClassLoader classLoader;
+
+    private Compilation(File directory, boolean success, List<Diagnostic<? extends JavaFileObject>> diagnostics) {
+        this.directory = directory;
+        this.success = success;
+        this.diagnostics = diagnostics;
+    }
+
+    static JavaFileObject source(String className, String... lines) {
+        final String content = String.join("\n", lines) + "\n";
+        URI uri = URI.create("string:///" + className.replace('.', '/') + JavaFileObject.Kind.SOURCE.extension);
+        return new SimpleJavaFileObject(uri, JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return content;
+            }
+        };
+    }
+
+    /**
+     * Compile with the {@link RuntimePermissionsCompiler} only.
+     */
+    static Compilation compile(List<String> options, JavaFileObject... sources) throws IOException {
+        return compile(options, Collections.singletonList(new RuntimePermissionsCompiler()), sources);
+    }
+
+    static Compilation compile(List<String> options, List<? extends Processor> processors,
+                               JavaFileObject... sources) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("No system Java compiler, run the tests with a JDK");
+        }
+        File directory = Files.createTempDirectory("permission-requester").toFile();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        List<String> allOptions = new ArrayList<>(Arrays.asList(
+                "-classpath", System.getProperty("java.class.path"),
+                "-d", directory.getPath(),
+                "-s", directory.getPath(),
+                "-nowarn"));
+        allOptions.addAll(options);
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, Locale.US,
+                StandardCharsets.UTF_8)) {
+            JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics, allOptions,
+                    null, Arrays.asList(sources));
+            task.setProcessors(processors);
+            boolean success = task.call();
+            return new Compilation(directory, success, diagnostics.getDiagnostics());
+        }
+    }
+
+    boolean succeeded() {
+        return success;
+    }
+
+    /**
+     * @return the errors and warnings, one per line
+     */
+    String problems() {
+        StringBuilder problems = new StringBuilder();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR || diagnostic.getKind() == Diagnostic.Kind.WARNING) {
+                problems.append(diagnostic).append('\n');
+            }
+        }
+        return problems.toString();
+    }
+
+    /**
+     * @return the source generated for the class, or null if there is none
+     */
+    String generatedSource(String className) throws IOException {
+        File file = new File(directory, className.replace('.', File.separatorChar) + ".java");
+        if (!file.isFile()) return null;
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    Class<?> load(String className) throws ClassNotFoundException {
+        if (classLoader == null) {
+            URL[] urls;
+            try {
+                urls = new URL[]{directory.toURI().toURL()};
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            classLoader = new URLClassLoader(urls, Compilation.class.getClassLoader());
+        }
+        return Class.forName(className, true, classLoader);
+    }
+
+    /**
+     * Call the static method of the class, the generated ones are package private.
+     */
+    Object invoke(String className, String methodName, Object... args) throws Exception {
+        for (Method method : load(className).getDeclaredMethods()) {
+            if (method.getName().equals(methodName) && method.getParameterTypes().length == args.length) {
+                method.setAccessible(true);
+                return method.invoke(null, args);
+            }
+        }
+        throw new NoSuchMethodException(className + "." + methodName);
+    }
+}
@@ -0,0 +1,155 @@
+package github.tornaco.permission.compiler;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.tools.JavaFileObject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A host whose base class another processor generates is deferred until the base class exists,
+ * its requester is generated once, and the registry waits for it.
+ */
+public class DeferredHostTest {
+
+    private static final String REGISTRY = "test.registry.PermissionRegistry";
+
+    private static final JavaFileObject EARLY = Compilation.source("test.Early",
+            "package test;",
+            "import github.tornaco.permission.requester.RequiresPermission;",
+            "import github.tornaco.permission.requester.RuntimePermissions;",
+            "@RuntimePermissions",
+            "public class Early extends android.app.Activity {",
+            "    @RequiresPermission(\"p.CAMERA\")",
+            "    void shoot() {",
+            "    }",
+            "}");
+
+    private static final JavaFileObject LATE = Compilation.source("test.Late",
+            "package test;",
+            "import github.tornaco.permission.requester.RequiresPermission;",
+            "import github.tornaco.permission.requester.RuntimePermissions;",
+            "@RuntimePermissions",
+            "public class Late extends test.gen.Base {",
+            "    @RequiresPermission(\"p.LOCATION\")",
+            "    void locate() {",
+            "    }",
+            "}");
+
+    @Test
+    public void hostIsGeneratedOnceItsBaseClassExists() throws Exception {
+        RoundRecorder rounds = new RoundRecorder();
+        Compilation compilation = Compilation.compile(
+                Collections.singletonList("-ApermissionRequester.registry=" + REGISTRY),
+                Arrays.asList(new BaseClassGenerator(), rounds, new RuntimePermissionsCompiler()),
+                Compilation.ACTIVITY, EARLY, LATE);
+        assertTrue(compilation.problems(), compilation.succeeded());
+        assertEquals("", compilation.problems());
+        assertNotNull(compilation.generatedSource("test.LatePermissionRequester"));
+
+        int base = rounds.roundOf("test.gen.Base");
+        int late = rounds.roundOf("test.LatePermissionRequester");
+        int registry = rounds.roundOf(REGISTRY);
+        assertEquals(rounds.roundOf("test.EarlyPermissionRequester"), base);
+        assertEquals(base + 1, late);
+        // Written once the round of the deferred host brought no new one.
+        assertEquals(late + 1, registry);
+
+        assertEquals(1, compilation.invoke(REGISTRY, "countOf", "test.Early"));
+        assertEquals(1, compilation.invoke(REGISTRY, "countOf", "test.Late"));
+    }
+
+    /**
+     * Generates the base class of the late host in the first round, like the processor of some
+     * other library would.
+     */
+    private static final class BaseClassGenerator extends AbstractProcessor {
+
+        private boolean generated;
+
+        @Override
+        public Set<String> getSupportedAnnotationTypes() {
+            return Collections.singleton("*");
+        }
+
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latestSupported();
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            if (generated) return false;
+            generated = true;
+            try {
+                JavaFileObject file = processingEnv.getFiler().createSourceFile("test.gen.Base");
+                try (Writer writer = file.openWriter()) {
+                    writer.write("package test.gen;\npublic class Base extends android.app.Activity {\n}\n");
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Records the types of each round, each generated file is a root of the round after it was
+     * written.
+     */
+    private static final class RoundRecorder extends AbstractProcessor {
+
+        private final List<List<String>> rounds = new ArrayList<>();
+
+        @Override
+        public Set<String> getSupportedAnnotationTypes() {
+            return Collections.singleton("*");
+        }
+
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latestSupported();
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            List<String> names = new ArrayList<>();
+            for (Element element : roundEnv.getRootElements()) {
+                if (element instanceof TypeElement) {
+                    names.add(((TypeElement) element).getQualifiedName().toString());
+                }
+            }
+            rounds.add(names);
+            return false;
+        }
+
+        /**
+         * @return the only round the type is a root of
+         */
+        int roundOf(String name) {
+            int found = -1;
+            for (int i = 0; i < rounds.size(); i++) {
+                if (!rounds.get(i).contains(name)) continue;
+                assertEquals(name + " is generated more than once", -1, found);
+                found = i;
+            }
+            assertTrue(name + " is not generated", found >= 0);
+            return found;
+        }
+    }
+}
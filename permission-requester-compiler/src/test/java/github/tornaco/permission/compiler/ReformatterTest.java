@@ -0,0 +1,108 @@
+package github.tornaco.permission.compiler;
+
+import com.google.common.collect.ImmutableList;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.JavaFile;
+import com.squareup.javapoet.ParameterSpec;
+import com.squareup.javapoet.TypeName;
+import com.squareup.javapoet.TypeVariableName;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import github.tornaco.permission.requester.RequiresPermission;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The single pass {@link Reformatter#fixup(String)} and the streaming {@link ReformattingWriter}
+ * must produce exactly the output of the original {@link Reformatter#fixupThreePass(String)}.
+ */
+public class ReformatterTest {
+
+    private static final String[] EDGE_CASES = {
+            "",
+            " ",
+            "\n",
+            "   \n",
+            " \n \n\n",
+            "\n\n\nclass A {\n}\n",
+            "class A {  \n\n\n  int a;   \n\n}\n",
+            "class A {\n  void a() {\n\n\n    b( 1 , 2 ) ;\n  }\n}\n",
+            "class A {\n  String s = \"a  \\n  b ( )\";\n  char c = ' ';\n}\n",
+            "class A {\n  /* a   \n\n\n   b */   \n  // c (   \n  int a;\n}\n",
+            "class A {\r\n  int a;  \r\n\r\n\r\n}\r\n",
+            "a \r\n\r\n\r\nb\r\n",
+    };
+
+    // Not covered: a first line indented before code, which the three pass version fails on.
+    @Test
+    public void edgeCases() throws IOException {
+        for (String source : EDGE_CASES) {
+            assertSameOutput(source);
+        }
+    }
+
+    @Test
+    public void generatedSources() throws IOException {
+        HostModel host = host(HostKind.ACTIVITY, method("camera", 0x12, "android.permission.CAMERA"),
+                method("location", 0x34, "android.permission.ACCESS_FINE_LOCATION",
+                        "android.permission.ACCESS_COARSE_LOCATION"));
+        for (Dispatch dispatch : Dispatch.values()) {
+            for (boolean routed : new boolean[]{false, true}) {
+                JavaFile source = RequesterGenerator.generate(host, dispatch, dispatch == Dispatch.CLOSURE, routed);
+                assertSameOutput(source.toString());
+                assertStreamed(source);
+            }
+        }
+        JavaFile registry = RegistryGenerator.generate(ClassName.get("a", "Registry"), ImmutableList.of(host));
+        assertSameOutput(registry.toString());
+        assertStreamed(registry);
+    }
+
+    private static void assertSameOutput(String source) throws IOException {
+        String expected = Reformatter.fixupThreePass(source);
+        assertEquals(escape(source), expected, Reformatter.fixup(source));
+
+        // In one write, and split at every char.
+        StringWriter whole = new StringWriter();
+        try (ReformattingWriter writer = new ReformattingWriter(whole)) {
+            writer.write(source);
+        }
+        assertEquals(escape(source), expected, whole.toString());
+        StringWriter split = new StringWriter();
+        try (ReformattingWriter writer = new ReformattingWriter(split)) {
+            for (int i = 0; i < source.length(); i++) {
+                writer.write(source.charAt(i));
+            }
+        }
+        assertEquals(escape(source), expected, split.toString());
+    }
+
+    private static void assertStreamed(JavaFile source) throws IOException {
+        StringWriter streamed = new StringWriter();
+        try (ReformattingWriter writer = new ReformattingWriter(streamed)) {
+            source.writeTo(writer);
+        }
+        assertEquals(Reformatter.fixupThreePass(source.toString()), streamed.toString());
+    }
+
+    private static MethodModel method(String name, int requestCode, String... permissions) {
+        return new MethodModel(name, name + "Checked",
+                ImmutableList.of(ParameterSpec.builder(String.class, "tag").build()),
+                ImmutableList.copyOf(permissions), requestCode, null, null, null,
+                RequiresPermission.RunOn.INLINE, TypeName.VOID);
+    }
+
+    private static HostModel host(HostKind kind, MethodModel... methods) {
+        return new HostModel("a", "HostPermissionRequester", ClassName.get("a", "Host"), "a.Host",
+                ImmutableList.<TypeVariableName>of(), kind, ImmutableList.copyOf(methods),
+                ImmutableList.<GroupModel>of());
+    }
+
+    private static String escape(String source) {
+        return source.replace("\r", "\\r").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,238 @@
+package github.tornaco.permission.compiler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.JavaFileObject;
+
+import github.tornaco.permission.requester.runtime.GrantStateCache;
+import github.tornaco.permission.requester.runtime.InMemoryPermissionBackend;
+import github.tornaco.permission.requester.runtime.PermissionBackend;
+import github.tornaco.permission.requester.runtime.Permissions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The registry of a module with several hosts, in two packages, looks up every method and routes
+ * every result to the requester that made the request.
+ */
+public class RegistryGeneratorTest {
+
+    private static final String REGISTRY = "test.registry.PermissionRegistry";
+
+    private static final JavaFileObject FIRST = Compilation.source("test.First",
+            "package test;",
+            "import github.tornaco.permission.requester.RequiresPermission;",
+            "import github.tornaco.permission.requester.RuntimePermissions;",
+            "import java.util.ArrayList;",
+            "import java.util.List;",
+            "@RuntimePermissions",
+            "public class First extends android.app.Activity {",
+            "    public final List<String> calls = new ArrayList<>();",
+            "    @RequiresPermission(\"p.CAMERA\")",
+            "    void shoot() {",
+            "        calls.add(\"shoot\");",
+            "    }",
+            "    @RequiresPermission({\"p.CAMERA\", \"p.AUDIO\"})",
+            "    void record(int seconds) {",
+            "        calls.add(\"record \" + seconds);",
+            "    }",
+            "    @RequiresPermission(\"p.LOCATION\")",
+            "    void locate() {",
+            "        calls.add(\"locate\");",
+            "    }",
+            "    @RequiresPermission(\"p.CONTACTS\")",
+            "    void share(String to) {",
+            "        calls.add(\"share \" + to);",
+            "    }",
+            "}");
+
+    private static final JavaFileObject SECOND = Compilation.source("test.Second",
+            "package test;",
+            "import github.tornaco.permission.requester.RequiresPermission;",
+            "import github.tornaco.permission.requester.RuntimePermissions;",
+            "import java.util.ArrayList;",
+            "import java.util.List;",
+            "@RuntimePermissions",
+            "public class Second extends android.app.Activity {",
+            "    public final List<String> calls = new ArrayList<>();",
+            "    @RequiresPermission(\"p.CAMERA\")",
+            "    void shoot() {",
+            "        calls.add(\"shoot\");",
+            "    }",
+            "    @RequiresPermission(\"p.SMS\")",
+            "    void send(String text) {",
+            "        calls.add(\"send \" + text);",
+            "    }",
+            "    @RequiresPermission(\"p.CALENDAR\")",
+            "    void plan() {",
+            "        calls.add(\"plan\");",
+            "    }",
+            "}");
+
+    private static final JavaFileObject THIRD = Compilation.source("test.other.Third",
+            "package test.other;",
+            "import github.tornaco.permission.requester.RequiresPermission;",
+            "import github.tornaco.permission.requester.RuntimePermissions;",
+            "import java.util.ArrayList;",
+            "import java.util.List;",
+            "@RuntimePermissions",
+            "public class Third extends android.app.Activity {",
+            "    public final List<String> calls = new ArrayList<>();",
+            "    @RequiresPermission(\"p.STORAGE\")",
+            "    void save(String name) {",
+            "        calls.add(\"save \" + name);",
+            "    }",
+            "    @RequiresPermission(\"p.PHONE\")",
+            "    void call() {",
+            "        calls.add(\"call\");",
+            "    }",
+            "}");
+
+    private final InMemoryPermissionBackend backend = new InMemoryPermissionBackend();
+    private Compilation compilation;
+
+    @Before
+    public void setUp() throws Exception {
+        Permissions.setBackend(backend);
+        GrantStateCache.invalidate();
+        compilation = Compilation.compile(
+                Collections.singletonList("-ApermissionRequester.registry=" + REGISTRY),
+                Compilation.ACTIVITY, FIRST, SECOND, THIRD);
+        assertTrue(compilation.problems(), compilation.succeeded());
+    }
+
+    @After
+    public void tearDown() {
+        assertNull(backend.poll());
+        Permissions.setBackend(null);
+        GrantStateCache.invalidate();
+    }
+
+    @Test
+    public void everyMethodIsFoundByItsCode() throws Exception {
+        int size = (Integer) registry("size");
+        assertEquals(9, size);
+        for (int i = 0; i < size; i++) {
+            int code = (Integer) registry("requestCodeAt", i);
+            String host = (String) registry("hostAt", i);
+            assertEquals(i, registry("indexOf", code));
+            assertEquals(i, registry("indexOf", host, code));
+            int first = (Integer) registry("firstIndexOf", host);
+            int count = (Integer) registry("countOf", host);
+            assertTrue(first <= i && i < first + count);
+        }
+        assertEquals(4, registry("countOf", "test.First"));
+        assertEquals("locate", registry("methodAt", registry("indexOf", "test.First", codeOf("test.First", "locate"))));
+        assertEquals(-1, registry("indexOf", "test.Second", codeOf("test.First", "locate")));
+        assertEquals(-1, registry("firstIndexOf", "test.Missing"));
+        assertEquals(0, registry("countOf", "test.Missing"));
+    }
+
+    @Test
+    public void collidingCodesAreProbed() throws Exception {
+        int size = (Integer) registry("size");
+        int mask = RegistryGenerator.tableSize(size) - 1;
+        int collisions = 0;
+        for (int i = 0; i < size; i++) {
+            for (int j = i + 1; j < size; j++) {
+                int a = (Integer) registry("requestCodeAt", i);
+                int b = (Integer) registry("requestCodeAt", j);
+                if (RegistryGenerator.slot(a, mask) != RegistryGenerator.slot(b, mask)) continue;
+                collisions++;
+                assertEquals(i, registry("indexOf", a));
+                assertEquals(j, registry("indexOf", b));
+            }
+        }
+        // Otherwise the sample has to change.
+        assertTrue("No codes of the sample share a slot", collisions > 0);
+        // An unknown code that lands on the occupied slots still ends at an empty one.
+        for (int code = 0; code <= mask; code++) {
+            if (!isRequestCode(code, size)) assertEquals(-1, registry("indexOf", code));
+        }
+    }
+
+    @Test
+    public void permissionsAtReturnsACopy() throws Exception {
+        int index = (Integer) registry("indexOf", "test.First", codeOf("test.First", "record"));
+        String[] permissions = (String[]) registry("permissionsAt", index);
+        assertEquals(Arrays.asList("p.CAMERA", "p.AUDIO"), Arrays.asList(permissions));
+        permissions[0] = "p.CHANGED";
+        String[] again = (String[]) registry("permissionsAt", index);
+        assertNotSame(permissions, again);
+        assertEquals(Arrays.asList("p.CAMERA", "p.AUDIO"), Arrays.asList(again));
+    }
+
+    @Test
+    public void resultsAreRoutedToTheRequester() throws Exception {
+        Object first = compilation.load("test.First").getConstructor().newInstance();
+        Object second = compilation.load("test.Second").getConstructor().newInstance();
+        Object third = compilation.load("test.other.Third").getConstructor().newInstance();
+        backend.grant("p.CAMERA", "p.AUDIO", "p.SMS", "p.STORAGE");
+
+        // Granted already, nothing to route.
+        compilation.invoke("test.FirstPermissionRequester", "recordChecked", 3, first);
+        assertNull(backend.poll());
+        backend.revoke("p.CAMERA", "p.AUDIO", "p.SMS", "p.STORAGE");
+        GrantStateCache.invalidate();
+
+        compilation.invoke("test.FirstPermissionRequester", "recordChecked", 5, first);
+        answer(first, "p.CAMERA", "p.AUDIO");
+        compilation.invoke("test.SecondPermissionRequester", "sendChecked", "hi", second);
+        answer(second, "p.SMS");
+        compilation.invoke("test.other.ThirdPermissionRequester", "saveChecked", "a", third);
+        answer(third, "p.STORAGE");
+
+        assertEquals(Arrays.asList("record 3", "record 5"), callsOf(first));
+        assertEquals(Collections.singletonList("send hi"), callsOf(second));
+        assertEquals(Collections.singletonList("save a"), callsOf(third));
+
+        // Codes of no requester, and hosts the requester of the code does not serve.
+        assertFalse((Boolean) registry("dispatch", first, 0x7fff, new String[0], new int[0]));
+        int code = codeOf("test.Second", "plan");
+        assertFalse((Boolean) registry("dispatch", first, code, new String[]{"p.CALENDAR"},
+                new int[]{PermissionBackend.GRANTED}));
+    }
+
+    private void answer(Object host, String... permissions) throws Exception {
+        InMemoryPermissionBackend.Request request = backend.poll();
+        assertEquals(Arrays.asList(permissions), Arrays.asList(request.getPermissions()));
+        backend.grant(permissions);
+        assertTrue((Boolean) registry("dispatch", host, request.getRequestCode(),
+                request.getPermissions(), request.results()));
+    }
+
+    private Object registry(String method, Object... args) throws Exception {
+        return compilation.invoke(REGISTRY, method, args);
+    }
+
+    private int codeOf(String host, String method) throws Exception {
+        int first = (Integer) registry("firstIndexOf", host);
+        int count = (Integer) registry("countOf", host);
+        for (int i = first; i < first + count; i++) {
+            if (method.equals(registry("methodAt", i))) return (Integer) registry("requestCodeAt", i);
+        }
+        throw new AssertionError(host + "." + method);
+    }
+
+    private boolean isRequestCode(int code, int size) throws Exception {
+        for (int i = 0; i < size; i++) {
+            if ((Integer) registry("requestCodeAt", i) == code) return true;
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> callsOf(Object host) throws Exception {
+        return (List<String>) host.getClass().getField("calls").get(host);
+    }
+}
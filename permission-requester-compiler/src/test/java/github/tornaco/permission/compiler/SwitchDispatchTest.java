@@ -0,0 +1,162 @@
+package github.tornaco.permission.compiler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.JavaFileObject;
+
+import github.tornaco.permission.requester.runtime.GrantStateCache;
+import github.tornaco.permission.requester.runtime.InMemoryPermissionBackend;
+import github.tornaco.permission.requester.runtime.Permissions;
+import github.tornaco.permission.requester.runtime.RequestScheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The switch dispatch keeps one request per method in fields, calls made while it waits and
+ * group requests must get their results like with the closure dispatch.
+ */
+public class SwitchDispatchTest {
+
+    private static final String REQUESTER = "test.HostPermissionRequester";
+
+    private static final JavaFileObject HOST = Compilation.source("test.Host",
+            "package test;",
+            "import github.tornaco.permission.requester.RequiresPermission;",
+            "import github.tornaco.permission.requester.RuntimePermissions;",
+            "import java.util.ArrayList;",
+            "import java.util.List;",
+            "@RuntimePermissions",
+            "public class Host extends android.app.Activity {",
+            "    public final List<String> calls = new ArrayList<>();",
+            "    @RequiresPermission(value = \"p.CAMERA\", groups = \"all\")",
+            "    void shoot(String name) {",
+            "        calls.add(\"shoot \" + name);",
+            "    }",
+            "    @RequiresPermission(value = {\"p.CAMERA\", \"p.LOCATION\"}, groups = \"all\")",
+            "    @RequiresPermission.OnDenied(\"denied\")",
+            "    void locate() {",
+            "        calls.add(\"locate\");",
+            "    }",
+            "    void denied() {",
+            "        calls.add(\"denied\");",
+            "    }",
+            "}");
+
+    private final InMemoryPermissionBackend backend = new InMemoryPermissionBackend();
+
+    @Before
+    public void setUp() {
+        Permissions.setBackend(backend);
+        GrantStateCache.invalidate();
+    }
+
+    @After
+    public void tearDown() {
+        assertNull(backend.poll());
+        assertEquals(0, RequestScheduler.size());
+        Permissions.setBackend(null);
+        GrantStateCache.invalidate();
+    }
+
+    @Test
+    public void callWhileTheMethodWaitsGetsTheSameResult() throws Exception {
+        for (String dispatch : new String[]{"closure", "switch"}) {
+            Compilation compilation = compile(dispatch);
+            Object host = compilation.load("test.Host").getConstructor().newInstance();
+            compilation.invoke(REQUESTER, "shootChecked", "a", host);
+            compilation.invoke(REQUESTER, "shootChecked", "b", host);
+
+            InMemoryPermissionBackend.Request request = backend.poll();
+            assertNotNull(dispatch, request);
+            assertNull(dispatch, backend.poll());
+            backend.grant("p.CAMERA");
+            assertTrue(dispatch, answer(compilation, request));
+            assertEquals(dispatch, Arrays.asList("shoot a", "shoot b"), callsOf(host));
+            // Delivered once only.
+            assertFalse(dispatch, answer(compilation, request));
+            reset();
+        }
+    }
+
+    @Test
+    public void deniedResultReachesEveryCall() throws Exception {
+        for (String dispatch : new String[]{"closure", "switch"}) {
+            Compilation compilation = compile(dispatch);
+            Object host = compilation.load("test.Host").getConstructor().newInstance();
+            compilation.invoke(REQUESTER, "locateChecked", host);
+            compilation.invoke(REQUESTER, "locateChecked", host);
+
+            answer(compilation, backend.poll());
+            assertEquals(dispatch, Arrays.asList("denied", "denied"), callsOf(host));
+            reset();
+        }
+    }
+
+    @Test
+    public void groupRequestCoalescesTheMethods() throws Exception {
+        for (String dispatch : new String[]{"closure", "switch"}) {
+            Compilation compilation = compile(dispatch);
+            Object host = compilation.load("test.Host").getConstructor().newInstance();
+            compilation.invoke(REQUESTER, "requestAll", host);
+            compilation.invoke(REQUESTER, "shootChecked", "a", host);
+            compilation.invoke(REQUESTER, "locateChecked", host);
+
+            InMemoryPermissionBackend.Request request = backend.poll();
+            assertEquals(dispatch, Arrays.asList("p.CAMERA", "p.LOCATION"),
+                    Arrays.asList(request.getPermissions()));
+            assertNull(dispatch, backend.poll());
+            backend.grant("p.CAMERA", "p.LOCATION");
+            answer(compilation, request);
+            assertEquals(dispatch, Arrays.asList("shoot a", "locate"), callsOf(host));
+            reset();
+        }
+    }
+
+    @Test
+    public void methodIsRequestedAgainAfterItsResult() throws Exception {
+        Compilation compilation = compile("switch");
+        Object host = compilation.load("test.Host").getConstructor().newInstance();
+        compilation.invoke(REQUESTER, "shootChecked", "a", host);
+        answer(compilation, backend.poll());
+        compilation.invoke(REQUESTER, "shootChecked", "b", host);
+
+        backend.grant("p.CAMERA");
+        answer(compilation, backend.poll());
+        assertEquals(Collections.singletonList("shoot b"), callsOf(host));
+    }
+
+    private void reset() {
+        tearDown();
+        backend.revoke("p.CAMERA", "p.LOCATION");
+        setUp();
+    }
+
+    private static Compilation compile(String dispatch) throws Exception {
+        Compilation compilation = Compilation.compile(
+                Collections.singletonList("-ApermissionRequester.dispatch=" + dispatch),
+                Compilation.ACTIVITY, HOST);
+        assertTrue(compilation.problems(), compilation.succeeded());
+        return compilation;
+    }
+
+    private static boolean answer(Compilation compilation, InMemoryPermissionBackend.Request request)
+            throws Exception {
+        return (Boolean) compilation.invoke(REQUESTER, "onRequestPermissionsResult",
+                request.getRequestCode(), request.getPermissions(), request.results());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> callsOf(Object host) throws Exception {
+        return (List<String>) host.getClass().getField("calls").get(host);
+    }
+}
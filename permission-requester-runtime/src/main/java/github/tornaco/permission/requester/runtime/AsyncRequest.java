@@ -0,0 +1,103 @@
+package github.tornaco.permission.requester.runtime;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Pending request of a generated Async method, completing its future right from the result.
+ * <p>
+ * A granted request completes with the value of {@link #call(Object)}. A denied one completes
+ * with {@link #valueOfDenied(GrantResult)}, by default exceptionally with a
+ * {@link PermissionDeniedException}. A request dropped by its PendingRequests, or whose host is
+ * gone before {@link #call(Object)} runs on the executor, completes with a CancellationException,
+ * so no future is left waiting.
+ * <p>
+ * Needs CompletableFuture, so Java 8 or Android API level 24.
+ *
+ * @param <H> type of the host
+ * @param <T> type of the value of the future
+ */
+public abstract class AsyncRequest<H, T> extends PendingRequest<H> {
+
+    private final CompletableFuture<T> future = new CompletableFuture<>();
+
+    /**
+     * @param executor to run {@link #call(Object)} on, or null to run it with the result
+     */
+    protected AsyncRequest(H host, Executor executor) {
+        super(host, executor);
+    }
+
+    public CompletableFuture<T> future() {
+        return future;
+    }
+
+    /**
+     * Run the host method, the permissions are granted.
+     */
+    protected abstract T call(H host);
+
+    /**
+     * Called when denied, before the future completes. Does nothing by default.
+     */
+    protected void whenDenied(H host) {
+    }
+
+    /**
+     * Called when partially granted, before the future completes. Calls
+     * {@link #whenDenied(Object)} by default.
+     */
+    protected void whenPartiallyGranted(H host, String[] granted, String[] denied) {
+        whenDenied(host);
+    }
+
+    /**
+     * @return the value to complete a denied request with
+     * @throws PermissionDeniedException to complete it exceptionally, the default
+     */
+    protected T valueOfDenied(GrantResult result) {
+        throw new PermissionDeniedException(result);
+    }
+
+    /**
+     * Complete the request with the permissions granted already, without asking for them.
+     */
+    public final void grant(H host) {
+        granted(host);
+    }
+
+    @Override
+    public final void onGranted(H host) {
+        try {
+            future.complete(call(host));
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+        }
+    }
+
+    @Override
+    public final void onDenied(H host) {
+        try {
+            whenDenied(host);
+            future.complete(valueOfDenied(new GrantResult(permissions.clone())));
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+        }
+    }
+
+    @Override
+    public final void onPartiallyGranted(H host, String[] granted, String[] denied) {
+        try {
+            whenPartiallyGranted(host, granted, denied);
+            future.complete(valueOfDenied(new GrantResult(denied)));
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+        }
+    }
+
+    @Override
+    void evicted(EvictionListener.Reason reason) {
+        future.completeExceptionally(new CancellationException("Request dropped: " + reason));
+    }
+}
@@ -0,0 +1,29 @@
+package github.tornaco.permission.requester.runtime;
+
+/**
+ * Told about pending requests that are dropped without their result, see
+ * {@link PendingRequests#setEvictionListener(EvictionListener)}.
+ */
+public interface EvictionListener {
+
+    enum Reason {
+        /**
+         * The host was garbage collected before the result came.
+         */
+        HOST_COLLECTED,
+        /**
+         * The request waited longer than the time to live.
+         */
+        EXPIRED,
+        /**
+         * The store was full, the oldest request made room for a new one.
+         */
+        CAPACITY
+    }
+
+    /**
+     * @param requester   the generated requester class the request was made by
+     * @param requestCode code of the dropped request
+     */
+    void onEvicted(Class<?> requester, int requestCode, Reason reason);
+}
@@ -0,0 +1,93 @@
+package github.tornaco.permission.requester.runtime;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The executors granted methods run on, see RequiresPermission#runOn().
+ * <p>
+ * The executors are created on first use, a process that only runs granted methods inline never
+ * starts a thread.
+ */
+public class GrantExecutors {
+
+    private static volatile Executor sCustom;
+
+    private GrantExecutors() {
+    }
+
+    /**
+     * Set the executor of the methods that run on RunOn.CUSTOM.
+     */
+    public static void setCustom(Executor executor) {
+        sCustom = executor;
+    }
+
+    /**
+     * @return the shared background pool, at most one thread per core but two at least
+     */
+    public static Executor background() {
+        return Background.EXECUTOR;
+    }
+
+    /**
+     * @return an executor starting a virtual thread per task where the JVM supports them, else
+     * the {@link #background()} pool
+     */
+    public static Executor virtual() {
+        return Virtual.EXECUTOR;
+    }
+
+    /**
+     * @return the executor set by {@link #setCustom(Executor)}
+     * @throws IllegalStateException if none is set
+     */
+    public static Executor custom() {
+        Executor executor = sCustom;
+        if (executor == null) {
+            throw new IllegalStateException("No custom executor, call GrantExecutors.setCustom() first");
+        }
+        return executor;
+    }
+
+    // Holders, so the executors are only created when used.
+
+    private static final class Background {
+        static final Executor EXECUTOR = createBackground();
+    }
+
+    private static final class Virtual {
+        static final Executor EXECUTOR = createVirtual();
+    }
+
+    private static Executor createBackground() {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PermissionRequester-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static Executor createVirtual() {
+        try {
+            // Java 21, looked up once so the runtime still builds and runs on Java 8 and Android.
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor) factory.invoke(null);
+        } catch (Exception unsupported) {
+            return background();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package github.tornaco.permission.requester.runtime;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Outcome of a permission request, the permissions that were denied. The granted result is a
+ * shared constant.
+ */
+public final class GrantResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final GrantResult GRANTED = new GrantResult(new String[0]);
+
+    private final String[] denied;
+
+    GrantResult(String[] denied) {
+        this.denied = denied;
+    }
+
+    public boolean isGranted() {
+        return denied.length == 0;
+    }
+
+    /**
+     * @return the denied permissions, empty if all are granted
+     */
+    public String[] getDenied() {
+        return denied.clone();
+    }
+
+    // Keeps the granted result shared.
+    private Object readResolve() {
+        return isGranted() ? GRANTED : this;
+    }
+
+    @Override
+    public String toString() {
+        return isGranted() ? "GrantResult{granted}" : "GrantResult{denied=" + Arrays.toString(denied) + "}";
+    }
+}
@@ -0,0 +1,28 @@
+package github.tornaco.permission.requester.runtime;
+
+/**
+ * A change of the grant state of one permission, see {@link GrantStatePublisher}.
+ */
+public final class GrantState {
+
+    private final String permission;
+    private final boolean granted;
+
+    GrantState(String permission, boolean granted) {
+        this.permission = permission;
+        this.granted = granted;
+    }
+
+    public String getPermission() {
+        return permission;
+    }
+
+    public boolean isGranted() {
+        return granted;
+    }
+
+    @Override
+    public String toString() {
+        return permission + (granted ? " granted" : " denied");
+    }
+}
@@ -0,0 +1,90 @@
+package github.tornaco.permission.requester.runtime;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process wide cache of the permissions known to be granted, consulted by
+ * {@link Permissions#missing(Object, String[])} before asking the {@link PermissionBackend}, which
+ * costs a binder call per permission on Android.
+ * <p>
+ * Only grants are cached. A denied permission may be granted in Settings at any time, so it is
+ * always checked again. A granted one may be revoked in Settings too, call {@link #invalidate()}
+ * when a host resumes so the next check goes to the package manager again.
+ * <p>
+ * Every permission result and every check is passed on to the {@link GrantStatePublisher}.
+ * <p>
+ * Safe to use from any thread, lookups do not lock or allocate.
+ */
+public class GrantStateCache {
+
+    private static final Set<String> sGranted =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // Bumped by invalidate(), so a check that raced with it is not cached.
+    private static volatile int sGeneration;
+
+    private GrantStateCache() {
+    }
+
+    /**
+     * @return true if the permission is known to be granted, false if it has to be checked
+     */
+    public static boolean isGranted(String permission) {
+        return sGranted.contains(permission);
+    }
+
+    /**
+     * @return the generation to pass to {@link #putGranted(String, int)} after the check
+     */
+    public static int generation() {
+        return sGeneration;
+    }
+
+    /**
+     * Remember a permission the package manager reported granted.
+     *
+     * @param generation {@link #generation()} read before the check, the grant is dropped if the
+     *                   cache was invalidated since
+     */
+    public static void putGranted(String permission, int generation) {
+        GrantStatePublisher.publish(permission, true);
+        sGranted.add(permission);
+        if (generation != sGeneration) {
+            // Invalidated while checking, the result may be stale already.
+            sGranted.remove(permission);
+        }
+    }
+
+    /**
+     * Tell about a permission the package manager reported denied, it is not cached.
+     */
+    public static void putDenied(String permission) {
+        sGranted.remove(permission);
+        GrantStatePublisher.publish(permission, false);
+    }
+
+    /**
+     * Update the cache from the result of a permission request.
+     */
+    public static void onResult(String[] permissions, int[] grantResults, int grantedResult) {
+        int count = Math.min(permissions.length, grantResults.length);
+        for (int i = 0; i < count; i++) {
+            if (grantResults[i] == grantedResult) {
+                sGranted.add(permissions[i]);
+            } else {
+                sGranted.remove(permissions[i]);
+            }
+            GrantStatePublisher.publish(permissions[i], grantResults[i] == grantedResult);
+        }
+    }
+
+    /**
+     * Forget every grant, call when a host resumes since permissions may have been revoked in
+     * Settings meanwhile.
+     */
+    public static void invalidate() {
+        sGeneration++;
+        sGranted.clear();
+    }
+}
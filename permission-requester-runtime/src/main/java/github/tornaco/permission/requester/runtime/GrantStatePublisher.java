@@ -0,0 +1,173 @@
+package github.tornaco.permission.requester.runtime;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Process wide stream of grant state changes, fed by the {@link GrantStateCache} with every
+ * permission result and every check of the generated requesters, so components can subscribe
+ * instead of polling checkSelfPermission.
+ * <p>
+ * Shaped like java.util.concurrent.Flow, which needs Java 9, so a Flow.Subscriber adapts with a
+ * few lines. Only changes are emitted: a permission is published the first time its state is
+ * known and whenever it flips. Each subscriber gets at most as many states as it requested, the
+ * ones it is not ready for are conflated to the latest state per permission, so a slow subscriber
+ * costs one entry per permission at most and never sees a permission flip back and forth.
+ * <p>
+ * Subscribers are kept in a copy-on-write array, publishing does not lock the subscriber list.
+ * States are delivered on the thread that publishes or requests them, one at a time per
+ * subscriber.
+ */
+public class GrantStatePublisher {
+
+    private static final Subscription[] EMPTY = new Subscription[0];
+
+    private static final AtomicReference<Subscription[]> sSubscriptions = new AtomicReference<>(EMPTY);
+    // Latest known state of every permission, to drop the states that did not change.
+    private static final Map<String, Boolean> sKnown = new ConcurrentHashMap<>();
+
+    private GrantStatePublisher() {
+    }
+
+    public interface Subscriber {
+
+        /**
+         * Called once before any state, request states with the subscription.
+         */
+        void onSubscribe(Subscription subscription);
+
+        void onNext(GrantState state);
+    }
+
+    /**
+     * Subscribe to the changes from now on.
+     */
+    public static void subscribe(Subscriber subscriber) {
+        Subscription subscription = new Subscription(subscriber);
+        Subscription[] current;
+        Subscription[] next;
+        do {
+            current = sSubscriptions.get();
+            next = new Subscription[current.length + 1];
+            System.arraycopy(current, 0, next, 0, current.length);
+            next[current.length] = subscription;
+        } while (!sSubscriptions.compareAndSet(current, next));
+        subscriber.onSubscribe(subscription);
+    }
+
+    /**
+     * @return the permissions whose state is known, e.g. to check them again
+     */
+    public static String[] known() {
+        Set<String> known = sKnown.keySet();
+        return known.toArray(new String[known.size()]);
+    }
+
+    /**
+     * Publish the state of a permission, if it changed.
+     */
+    static void publish(String permission, boolean granted) {
+        Boolean previous = sKnown.put(permission, granted);
+        if (previous != null && previous == granted) return;
+        GrantState state = new GrantState(permission, granted);
+        for (Subscription subscription : sSubscriptions.get()) {
+            subscription.offer(state);
+        }
+    }
+
+    private static void remove(Subscription subscription) {
+        Subscription[] current;
+        Subscription[] next;
+        do {
+            current = sSubscriptions.get();
+            int index = -1;
+            for (int i = 0; i < current.length && index < 0; i++) {
+                if (current[i] == subscription) index = i;
+            }
+            if (index < 0) return;
+            next = current.length == 1 ? EMPTY : new Subscription[current.length - 1];
+            System.arraycopy(current, 0, next, 0, index);
+            System.arraycopy(current, index + 1, next, index, current.length - index - 1);
+        } while (!sSubscriptions.compareAndSet(current, next));
+    }
+
+    public static final class Subscription {
+
+        private final Subscriber subscriber;
+        // Guarded by this.
+        private final Map<String, GrantState> pending = new LinkedHashMap<>();
+        private final Map<String, Boolean> delivered = new HashMap<>();
+        private long demand;
+        private boolean emitting;
+        private boolean cancelled;
+
+        Subscription(Subscriber subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        /**
+         * Ask for up to n more states, Long.MAX_VALUE for all of them.
+         */
+        public void request(long n) {
+            if (n <= 0) throw new IllegalArgumentException("Illegal request: " + n);
+            synchronized (this) {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            }
+            drain();
+        }
+
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                pending.clear();
+            }
+            remove(this);
+        }
+
+        void offer(GrantState state) {
+            synchronized (this) {
+                if (cancelled) return;
+                // Re-inserted, so the conflated state keeps the order of the latest change.
+                pending.remove(state.getPermission());
+                pending.put(state.getPermission(), state);
+            }
+            drain();
+        }
+
+        private void drain() {
+            synchronized (this) {
+                if (emitting) return;
+                emitting = true;
+            }
+            while (true) {
+                GrantState next;
+                synchronized (this) {
+                    if (cancelled || demand == 0 || pending.isEmpty()) {
+                        emitting = false;
+                        return;
+                    }
+                    Iterator<GrantState> iterator = pending.values().iterator();
+                    next = iterator.next();
+                    iterator.remove();
+                    Boolean last = delivered.put(next.getPermission(), next.isGranted());
+                    // Flipped back before it was delivered, nothing changed for this subscriber.
+                    if (last != null && last == next.isGranted()) continue;
+                    if (demand != Long.MAX_VALUE) demand--;
+                }
+                try {
+                    subscriber.onNext(next);
+                } catch (RuntimeException e) {
+                    synchronized (this) {
+                        emitting = false;
+                    }
+                    throw e;
+                }
+            }
+        }
+    }
+}
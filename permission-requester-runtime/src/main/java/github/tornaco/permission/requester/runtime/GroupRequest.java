@@ -0,0 +1,19 @@
+package github.tornaco.permission.requester.runtime;
+
+/**
+ * Request of a permission group. It has nothing to continue with, its result only updates the
+ * {@link GrantStateCache}, but while it is in flight the requests of the group's methods wait for
+ * it instead of opening dialogs of their own.
+ *
+ * @param <H> type of the host
+ */
+public class GroupRequest<H> extends PendingRequest<H> {
+
+    public GroupRequest(H host) {
+        super(host);
+    }
+
+    @Override
+    public void onGranted(H host) {
+    }
+}
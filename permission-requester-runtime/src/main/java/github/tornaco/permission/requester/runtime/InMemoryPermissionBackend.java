@@ -0,0 +1,99 @@
+package github.tornaco.permission.requester.runtime;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A {@link PermissionBackend} running the requesters on a plain JVM, for tests and benchmarks.
+ * <p>
+ * Permissions are granted and revoked by hand. Requests are queued, {@link #poll()} one and answer
+ * it by calling the onRequestPermissionsResult of the host's requester with its
+ * {@link Request#results()}.
+ * <p>
+ * Safe to use from any thread.
+ */
+public class InMemoryPermissionBackend implements PermissionBackend {
+
+    private final Set<String> mGranted =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ConcurrentLinkedQueue<Request> mRequests = new ConcurrentLinkedQueue<>();
+
+    public void grant(String... permissions) {
+        Collections.addAll(mGranted, permissions);
+    }
+
+    public void revoke(String... permissions) {
+        for (String permission : permissions) {
+            mGranted.remove(permission);
+        }
+    }
+
+    public boolean isGranted(String permission) {
+        return mGranted.contains(permission);
+    }
+
+    @Override
+    public void check(Object context, String[] permissions, int[] results) {
+        for (int i = 0; i < permissions.length; i++) {
+            results[i] = mGranted.contains(permissions[i]) ? GRANTED : DENIED;
+        }
+    }
+
+    @Override
+    public void request(Object host, String[] permissions, int requestCode) {
+        mRequests.offer(new Request(host, permissions, requestCode));
+    }
+
+    /**
+     * Every host counts as resumed.
+     */
+    @Override
+    public boolean isResumed(Object host) {
+        return true;
+    }
+
+    /**
+     * @return the oldest request not answered yet, or null
+     */
+    public Request poll() {
+        return mRequests.poll();
+    }
+
+    /**
+     * A request made through the backend.
+     */
+    public final class Request {
+        private final Object host;
+        private final String[] permissions;
+        private final int requestCode;
+
+        Request(Object host, String[] permissions, int requestCode) {
+            this.host = host;
+            this.permissions = permissions;
+            this.requestCode = requestCode;
+        }
+
+        public Object getHost() {
+            return host;
+        }
+
+        public String[] getPermissions() {
+            return permissions;
+        }
+
+        public int getRequestCode() {
+            return requestCode;
+        }
+
+        /**
+         * @return the grant results of the permissions as granted or revoked right now
+         */
+        public int[] results() {
+            int[] results = new int[permissions.length];
+            check(host, permissions, results);
+            return results;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package github.tornaco.permission.requester.runtime;
+
+import java.util.Arrays;
+
+/**
+ * Map from primitive int keys to non null values, like Android's SparseArray but usable on a plain
+ * JVM and with O(1) operations.
+ * <p>
+ * Keys are never boxed and no entry objects are allocated: keys and values live in two parallel
+ * arrays addressed by open addressing with linear probing. Removal shifts the following entries
+ * back, so there are no tombstones and lookups never slow down. The table is kept at most half
+ * full and grows by doubling.
+ * <p>
+ * This class is not thread safe.
+ */
+public class IntMap<V> {
+
+    private static final int MIN_CAPACITY = 8;
+
+    private int[] keys;
+    // A null value marks an empty slot.
+    private Object[] values;
+    private int size;
+
+    public IntMap() {
+        this(MIN_CAPACITY / 2);
+    }
+
+    /**
+     * @param expectedSize number of entries the map holds without growing
+     */
+    public IntMap(int expectedSize) {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("Illegal expected size: " + expectedSize);
+        }
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        keys = new int[capacity];
+        values = new Object[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(int key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * @return the value of the key, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int index = indexOf(key);
+        return index < 0 ? null : (V) values[index];
+    }
+
+    /**
+     * @return the previous value of the key, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (value == null) throw new NullPointerException("value == null");
+        int index = indexOf(key);
+        if (index >= 0) {
+            V previous = (V) values[index];
+            values[index] = value;
+            return previous;
+        }
+        index = ~index;
+        keys[index] = key;
+        values[index] = value;
+        if (++size * 2 > values.length) {
+            resize(values.length << 1);
+        }
+        return null;
+    }
+
+    /**
+     * @return the removed value of the key, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int index = indexOf(key);
+        if (index < 0) return null;
+        V removed = (V) values[index];
+        removeAt(index);
+        return removed;
+    }
+
+    /**
+     * @return number of slots, for iterating with {@link #keyAt(int)} and {@link #valueAt(int)}
+     */
+    public int capacity() {
+        return values.length;
+    }
+
+    /**
+     * @return the key in the slot, only meaningful if {@link #valueAt(int)} is not null
+     */
+    public int keyAt(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * @return the value in the slot, or null for an empty slot
+     */
+    @SuppressWarnings("unchecked")
+    public V valueAt(int slot) {
+        return (V) values[slot];
+    }
+
+    public void clear() {
+        if (size == 0) return;
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * @return the slot of the key, or the bitwise complement of the empty slot it would go to
+     */
+    private int indexOf(int key) {
+        int mask = values.length - 1;
+        for (int index = hash(key) & mask; ; index = (index + 1) & mask) {
+            if (values[index] == null) return ~index;
+            if (keys[index] == key) return index;
+        }
+    }
+
+    private void removeAt(int index) {
+        int mask = values.length - 1;
+        values[index] = null;
+        size--;
+        // Shift back the entries of the run that can not be found anymore across the hole.
+        for (int next = (index + 1) & mask; values[next] != null; next = (next + 1) & mask) {
+            int home = hash(keys[next]) & mask;
+            boolean reachable = index <= next
+                    ? index < home && home <= next
+                    : index < home || home <= next;
+            if (!reachable) {
+                keys[index] = keys[next];
+                values[index] = values[next];
+                values[next] = null;
+                index = next;
+            }
+        }
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] == null) continue;
+            int index = hash(oldKeys[i]) & mask;
+            while (values[index] != null) {
+                index = (index + 1) & mask;
+            }
+            keys[index] = oldKeys[i];
+            values[index] = oldValues[i];
+        }
+    }
+
+    private static int hash(int key) {
+        // Request codes share their upper bits, spread them over the whole table.
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
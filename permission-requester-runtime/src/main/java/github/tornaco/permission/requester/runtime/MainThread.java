@@ -0,0 +1,107 @@
+package github.tornaco.permission.requester.runtime;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands work from any thread to the main thread, where the {@link PendingRequests} and the
+ * {@link RequestScheduler} live, so they need no locks.
+ * <p>
+ * Tasks are collected in a lock-free queue and run in batches: the poster is only asked to run a
+ * drain when the queue was idle, however many threads post meanwhile.
+ * <p>
+ * Until a main thread is installed every thread counts as the main thread, which is how the
+ * requesters behaved before. The AndroidPermissionBackend installs the main looper of Android.
+ */
+public class MainThread {
+
+    private static final AtomicReference<Binding> sBinding = new AtomicReference<>();
+    private static final ConcurrentLinkedQueue<Runnable> sTasks = new ConcurrentLinkedQueue<>();
+    private static final AtomicBoolean sDrainPosted = new AtomicBoolean();
+
+    private static final Executor EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            if (isCurrent()) {
+                task.run();
+            } else {
+                post(task);
+            }
+        }
+    };
+
+    private static final Runnable DRAIN = new Runnable() {
+        @Override
+        public void run() {
+            // Cleared before polling, a task offered after the last poll posts another drain.
+            sDrainPosted.set(false);
+            Runnable task;
+            while ((task = sTasks.poll()) != null) {
+                task.run();
+            }
+        }
+    };
+
+    private MainThread() {
+    }
+
+    /**
+     * Install the main thread, unless one is installed already.
+     *
+     * @param poster runs a task on the main thread, e.g. by posting it to a Handler
+     * @return true if installed
+     */
+    public static boolean installIfAbsent(Thread thread, Executor poster) {
+        return sBinding.compareAndSet(null, new Binding(thread, poster));
+    }
+
+    /**
+     * Forget the main thread, for the tests.
+     */
+    static void uninstall() {
+        sBinding.set(null);
+    }
+
+    /**
+     * @return true on the main thread, or if none is installed
+     */
+    public static boolean isCurrent() {
+        Binding binding = sBinding.get();
+        return binding == null || binding.thread == Thread.currentThread();
+    }
+
+    /**
+     * @return an executor running tasks right away on the main thread, else posting them
+     */
+    public static Executor executor() {
+        return EXECUTOR;
+    }
+
+    /**
+     * Run the task on the main thread later, in the order of posting. Without an installed main
+     * thread the task runs right away.
+     */
+    public static void post(Runnable task) {
+        Binding binding = sBinding.get();
+        if (binding == null) {
+            task.run();
+            return;
+        }
+        sTasks.offer(task);
+        if (sDrainPosted.compareAndSet(false, true)) {
+            binding.poster.execute(DRAIN);
+        }
+    }
+
+    private static final class Binding {
+        final Thread thread;
+        final Executor poster;
+
+        Binding(Thread thread, Executor poster) {
+            this.thread = thread;
+            this.poster = poster;
+        }
+    }
+}
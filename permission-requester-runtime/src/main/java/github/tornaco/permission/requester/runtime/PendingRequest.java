@@ -0,0 +1,98 @@
+package github.tornaco.permission.requester.runtime;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executor;
+
+/**
+ * Continuation of a permission request that is waiting for its result, the grant and the deny
+ * path in one object so a result costs a single lookup.
+ * <p>
+ * The host is only referenced weakly and handed to the callbacks, so a request whose result never
+ * comes does not keep an Activity or Fragment alive. Implementations must not capture the host
+ * themselves.
+ * <p>
+ * With an executor {@link #onGranted(Object)} runs on it, the request itself is the task, so
+ * handing it off does not allocate.
+ *
+ * @param <H> type of the host
+ */
+public abstract class PendingRequest<H> implements Runnable {
+
+    private final WeakReference<H> host;
+    private final Executor executor;
+    // Set by PendingRequests when the request is added.
+    long addedAtNanos;
+    String[] permissions;
+    // Next request waiting for the same result.
+    PendingRequest<?> next;
+
+    protected PendingRequest(H host) {
+        this(host, null);
+    }
+
+    /**
+     * @param executor to run {@link #onGranted(Object)} on, or null to run it with the result
+     */
+    protected PendingRequest(H host, Executor executor) {
+        this.host = new WeakReference<>(host);
+        this.executor = executor;
+    }
+
+    /**
+     * @return the host, or null if it was garbage collected
+     */
+    public H getHost() {
+        return host.get();
+    }
+
+    /**
+     * Called when every requested permission is granted.
+     */
+    public abstract void onGranted(H host);
+
+    /**
+     * Run {@link #onGranted(Object)} on the executor, if the host is still there.
+     */
+    @Override
+    public final void run() {
+        H host = getHost();
+        if (host != null) {
+            onGranted(host);
+        } else {
+            evicted(EvictionListener.Reason.HOST_COLLECTED);
+        }
+    }
+
+    /**
+     * Called when the request is dropped without its result, or granted after its host is gone
+     * but before {@link #onGranted(Object)} ran on the executor.
+     */
+    void evicted(EvictionListener.Reason reason) {
+    }
+
+    void granted(H host) {
+        if (executor == null) {
+            onGranted(host);
+        } else {
+            executor.execute(this);
+        }
+    }
+
+    /**
+     * Called when every requested permission is denied, or the request was cancelled. Does nothing
+     * by default.
+     */
+    public void onDenied(H host) {
+    }
+
+    /**
+     * Called when some of the requested permissions are granted and the others denied. Calls
+     * {@link #onDenied(Object)} by default.
+     *
+     * @param granted the granted permissions, including those granted before the request
+     * @param denied  the denied permissions
+     */
+    public void onPartiallyGranted(H host, String[] granted, String[] denied) {
+        onDenied(host);
+    }
+}
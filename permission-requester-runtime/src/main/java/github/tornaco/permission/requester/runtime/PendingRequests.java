@@ -0,0 +1,419 @@
+package github.tornaco.permission.requester.runtime;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The requests of one generated requester that wait for their result, keyed by request code.
+ * <p>
+ * Requests are coalesced: a request whose permissions are all part of a request in flight does
+ * not start another one, it waits for the result of that request instead, and the result is
+ * fanned out to every waiting request.
+ * <p>
+ * The generated requesters only ask for the permissions that are not granted yet, so a result
+ * may lack some permissions of a request. Those were granted when it was made and count as
+ * granted.
+ * <p>
+ * The store does not leak: hosts are referenced weakly by the {@link PendingRequest}s, at most
+ * {@link #setCapacity(int) capacity} requests are in flight, and requests older than the
+ * {@link #setTimeToLive(long) time to live} are dropped. The arguments a request captured are held
+ * strongly until then. Stale requests are swept whenever a request is added or a result comes,
+ * and on {@link #sweepAll()}, and every request dropped without its result is reported to the
+ * {@link EvictionListener}.
+ * <p>
+ * Must be used on the main thread, where the requests are made and their results delivered.
+ */
+public class PendingRequests {
+
+    public static final int DEFAULT_CAPACITY = 32;
+    public static final long DEFAULT_TIME_TO_LIVE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    // Result of one permission, see resultOf().
+    private static final int GRANTED = 0;
+    private static final int DENIED = 1;
+    private static final int NOT_REQUESTED = 2;
+
+    private static volatile int sCapacity = DEFAULT_CAPACITY;
+    private static volatile long sTimeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TIME_TO_LIVE_MILLIS);
+    private static volatile EvictionListener sEvictionListener;
+    // Requesters may be loaded on any thread.
+    private static final Set<PendingRequests> sAll =
+            Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<PendingRequests, Boolean>()));
+
+    private final Class<?> requester;
+    // Requests in flight by code, each the head of the requests waiting for its result.
+    private final IntMap<PendingRequest<?>> requests = new IntMap<>();
+    // The stale requests found by a sweep.
+    private int[] staleCodes = new int[8];
+    private EvictionListener.Reason[] staleReasons = new EvictionListener.Reason[8];
+
+    /**
+     * @param requester the generated requester class, reported with evictions
+     */
+    public PendingRequests(Class<?> requester) {
+        this.requester = requester;
+        sAll.add(this);
+    }
+
+    /**
+     * Drop the stale requests of every requester, so the arguments of requests whose host is gone
+     * are released without waiting for the next request of their requester.
+     * {@link RequestScheduler#onResume()} calls it.
+     */
+    public static void sweepAll() {
+        PendingRequests[] all;
+        synchronized (sAll) {
+            all = sAll.toArray(new PendingRequests[sAll.size()]);
+        }
+        long now = System.nanoTime();
+        for (PendingRequests requests : all) {
+            requests.sweep(now);
+        }
+    }
+
+    /**
+     * Set the number of requests in flight each requester keeps at most,
+     * {@link #DEFAULT_CAPACITY} by default.
+     */
+    public static void setCapacity(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Illegal capacity: " + capacity);
+        sCapacity = capacity;
+    }
+
+    /**
+     * Set how long a request waits for its result at most,
+     * {@link #DEFAULT_TIME_TO_LIVE_MILLIS} by default.
+     */
+    public static void setTimeToLive(long millis) {
+        if (millis <= 0) throw new IllegalArgumentException("Illegal time to live: " + millis);
+        sTimeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    static long timeToLiveNanos() {
+        return sTimeToLiveNanos;
+    }
+
+    /**
+     * @param listener told about every request dropped without its result, or null
+     */
+    public static void setEvictionListener(EvictionListener listener) {
+        sEvictionListener = listener;
+    }
+
+    /**
+     * Remember the request until its result comes. If a request in flight asks for all of the
+     * permissions already, the request waits for its result and must not be started.
+     *
+     * @param permissions the permissions of the request, not modified
+     * @return true if the caller has to request the permissions with the request code, false if
+     * the request waits for one in flight
+     */
+    public boolean add(int requestCode, String[] permissions, PendingRequest<?> request) {
+        long now = System.nanoTime();
+        request.addedAtNanos = now;
+        request.permissions = permissions;
+        request.next = null;
+        sweep(now);
+
+        PendingRequest<?> inFlight = findCovering(permissions);
+        if (inFlight != null) {
+            while (inFlight.next != null) {
+                inFlight = inFlight.next;
+            }
+            inFlight.next = request;
+            return false;
+        }
+
+        // A request with the same code asks for the same permissions, so it is never in flight here.
+        requests.put(requestCode, request);
+        while (requests.size() > sCapacity) {
+            evictOldest();
+        }
+        return true;
+    }
+
+    /**
+     * Deliver a result to every request waiting for it. Each of them is granted if all of its
+     * own permissions are, partially granted if some are. Requests that expired or whose host is
+     * gone are dropped instead.
+     *
+     * @return true if the result belonged to a request in flight
+     */
+    public boolean dispatch(int requestCode, String[] permissions, int[] grantResults, int grantedResult) {
+        PendingRequest<?> request = requests.remove(requestCode);
+        long now = System.nanoTime();
+        // The other stale requests of the requester too.
+        sweep(now);
+        if (request == null) return false;
+        boolean expired = now - request.addedAtNanos > sTimeToLiveNanos;
+        while (request != null) {
+            PendingRequest<?> next = request.next;
+            request.next = null;
+            if (expired) {
+                evicted(request, requestCode, EvictionListener.Reason.EXPIRED);
+            } else if (!deliver(request, permissions, grantResults, grantedResult)) {
+                evicted(request, requestCode, EvictionListener.Reason.HOST_COLLECTED);
+            }
+            request = next;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if every result is the granted result, false for the empty results of a
+     * cancelled request
+     */
+    public static boolean allGranted(int[] grantResults, int grantedResult) {
+        if (grantResults.length == 0) return false;
+        for (int result : grantResults) {
+            if (result != grantedResult) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param wanted the permissions of the request, those not in the result were granted before
+     * @return how many of the wanted permissions are granted, 0 for the empty results of a
+     * cancelled request
+     */
+    public static int countGranted(String[] wanted, String[] permissions, int[] grantResults, int grantedResult) {
+        if (grantResults.length == 0) return 0;
+        int count = 0;
+        for (String permission : wanted) {
+            if (resultOf(permission, permissions, grantResults, grantedResult) != DENIED) count++;
+        }
+        return count;
+    }
+
+    /**
+     * @param grantedCount {@link #countGranted(String[], String[], int[], int)} of the result
+     * @return the wanted permissions that are granted, in their order
+     */
+    public static String[] grantedOf(String[] wanted, int grantedCount,
+                                     String[] permissions, int[] grantResults, int grantedResult) {
+        return subsetOf(wanted, grantedCount, true, permissions, grantResults, grantedResult);
+    }
+
+    /**
+     * @param grantedCount {@link #countGranted(String[], String[], int[], int)} of the result
+     * @return the wanted permissions that are denied, in their order
+     */
+    public static String[] deniedOf(String[] wanted, int grantedCount,
+                                    String[] permissions, int[] grantResults, int grantedResult) {
+        return subsetOf(wanted, wanted.length - grantedCount, false, permissions, grantResults, grantedResult);
+    }
+
+    /**
+     * Drops the stale requests first, so an expired request is not pending anymore.
+     *
+     * @return true if a request of the host waits for the result of the request code
+     */
+    public boolean isPending(int requestCode, Object host) {
+        sweep(System.nanoTime());
+        for (PendingRequest<?> request = requests.get(requestCode); request != null; request = request.next) {
+            if (request.getHost() == host) return true;
+        }
+        return false;
+    }
+
+    /**
+     * For the switch dispatch requesters, whose requests in flight are not kept here. Requests with
+     * the request code are left out, they wait for the result of the request code anyway.
+     *
+     * @return true if a request in flight with another code asks for all of the permissions
+     */
+    public boolean isCovered(int requestCode, String[] permissions) {
+        sweep(System.nanoTime());
+        for (int slot = 0; slot < requests.capacity(); slot++) {
+            PendingRequest<?> request = requests.valueAt(slot);
+            if (request != null && requests.keyAt(slot) != requestCode
+                    && covers(request.permissions, permissions)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return number of requests in flight
+     */
+    public int size() {
+        return requests.size();
+    }
+
+    private static int resultOf(String permission, String[] permissions, int[] grantResults, int grantedResult) {
+        int count = Math.min(permissions.length, grantResults.length);
+        for (int i = 0; i < count; i++) {
+            if (permission.equals(permissions[i])) {
+                return grantResults[i] == grantedResult ? GRANTED : DENIED;
+            }
+        }
+        return NOT_REQUESTED;
+    }
+
+    // Sized exactly by the count, so a partial result costs the two arrays only.
+    private static String[] subsetOf(String[] wanted, int count, boolean granted,
+                                     String[] permissions, int[] grantResults, int grantedResult) {
+        String[] subset = new String[count];
+        int index = 0;
+        for (int i = 0; i < wanted.length && index < count; i++) {
+            boolean isGranted = resultOf(wanted[i], permissions, grantResults, grantedResult) != DENIED;
+            if (isGranted == granted) {
+                subset[index++] = wanted[i];
+            }
+        }
+        return subset;
+    }
+
+    /**
+     * @return the request in flight that asks for all of the permissions, or null
+     */
+    private PendingRequest<?> findCovering(String[] permissions) {
+        for (int slot = 0; slot < requests.capacity(); slot++) {
+            PendingRequest<?> request = requests.valueAt(slot);
+            if (request != null && covers(request.permissions, permissions)) return request;
+        }
+        return null;
+    }
+
+    private static boolean covers(String[] inFlight, String[] permissions) {
+        // The generated requesters share one array per permission set.
+        if (inFlight == permissions) return true;
+        for (String permission : permissions) {
+            boolean found = false;
+            for (int i = 0; i < inFlight.length && !found; i++) {
+                found = permission.equals(inFlight[i]);
+            }
+            if (!found) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the host is gone
+     */
+    private static <H> boolean deliver(PendingRequest<H> request,
+                                       String[] permissions, int[] grantResults, int grantedResult) {
+        H host = request.getHost();
+        if (host == null) return false;
+        String[] wanted = request.permissions;
+        int grantedCount = countGranted(wanted, permissions, grantResults, grantedResult);
+        if (grantResults.length > 0 && grantedCount == wanted.length) {
+            request.granted(host);
+        } else if (grantedCount == 0) {
+            request.onDenied(host);
+        } else {
+            request.onPartiallyGranted(host,
+                    grantedOf(wanted, grantedCount, permissions, grantResults, grantedResult),
+                    deniedOf(wanted, grantedCount, permissions, grantResults, grantedResult));
+        }
+        return true;
+    }
+
+    private void sweep(long now) {
+        long timeToLive = sTimeToLiveNanos;
+        int count = 0;
+        for (int slot = 0; slot < requests.capacity(); slot++) {
+            PendingRequest<?> request = requests.valueAt(slot);
+            if (request == null) continue;
+            int code = requests.keyAt(slot);
+            EvictionListener.Reason reason;
+            if (now - request.addedAtNanos > timeToLive) {
+                reason = EvictionListener.Reason.EXPIRED;
+            } else if (!pruneCollected(code, request)) {
+                reason = EvictionListener.Reason.HOST_COLLECTED;
+            } else {
+                continue;
+            }
+            if (count == staleCodes.length) {
+                int[] grownCodes = new int[count * 2];
+                EvictionListener.Reason[] grownReasons = new EvictionListener.Reason[count * 2];
+                System.arraycopy(staleCodes, 0, grownCodes, 0, count);
+                System.arraycopy(staleReasons, 0, grownReasons, 0, count);
+                staleCodes = grownCodes;
+                staleReasons = grownReasons;
+            }
+            staleCodes[count] = code;
+            staleReasons[count++] = reason;
+        }
+        // Removing shifts entries between slots, so only remove once the table is scanned.
+        for (int i = 0; i < count; i++) {
+            evictAll(staleCodes[i], staleReasons[i]);
+            staleReasons[i] = null;
+        }
+    }
+
+    /**
+     * Drop the waiting requests whose host is gone. The head stays, it holds the permissions
+     * and the time of the request in flight.
+     *
+     * @return false if the head is the only request left and its host is gone too
+     */
+    private boolean pruneCollected(int code, PendingRequest<?> head) {
+        PendingRequest<?> previous = head;
+        for (PendingRequest<?> request = head.next; request != null; request = previous.next) {
+            if (request.getHost() == null) {
+                previous.next = request.next;
+                request.next = null;
+                evicted(request, code, EvictionListener.Reason.HOST_COLLECTED);
+            } else {
+                previous = request;
+            }
+        }
+        return head.getHost() != null || head.next != null;
+    }
+
+    private void evictOldest() {
+        int oldestCode = 0;
+        PendingRequest<?> oldest = null;
+        for (int slot = 0; slot < requests.capacity(); slot++) {
+            PendingRequest<?> request = requests.valueAt(slot);
+            if (request == null) continue;
+            // Compared by difference, nanoTime may overflow.
+            if (oldest == null || request.addedAtNanos - oldest.addedAtNanos < 0) {
+                oldest = request;
+                oldestCode = requests.keyAt(slot);
+            }
+        }
+        evictAll(oldestCode, EvictionListener.Reason.CAPACITY);
+    }
+
+    private void evictAll(int requestCode, EvictionListener.Reason reason) {
+        PendingRequest<?> request = requests.remove(requestCode);
+        while (request != null) {
+            PendingRequest<?> next = request.next;
+            request.next = null;
+            evicted(request, requestCode, reason);
+            request = next;
+        }
+    }
+
+    private void evicted(PendingRequest<?> request, int requestCode, EvictionListener.Reason reason) {
+        request.evicted(reason);
+        reportEvicted(requester, requestCode, reason);
+    }
+
+    /**
+     * For the switch dispatch requesters, which sweep their fields with the same rules.
+     *
+     * @param addedAtNanos {@link System#nanoTime()} when the request was made
+     * @return why the request is dropped, or null if it still waits for its result
+     */
+    public static EvictionListener.Reason staleReasonOf(WeakReference<?> host, long addedAtNanos) {
+        if (System.nanoTime() - addedAtNanos > sTimeToLiveNanos) return EvictionListener.Reason.EXPIRED;
+        if (host.get() == null) return EvictionListener.Reason.HOST_COLLECTED;
+        return null;
+    }
+
+    /**
+     * Tell the {@link EvictionListener} about a request dropped without its result, for the
+     * switch dispatch requesters, which keep their requests in fields instead.
+     */
+    public static void reportEvicted(Class<?> requester, int requestCode, EvictionListener.Reason reason) {
+        EvictionListener listener = sEvictionListener;
+        if (listener != null) {
+            listener.onEvicted(requester, requestCode, reason);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package github.tornaco.permission.requester.runtime;
+
+/**
+ * Checks and requests permissions for the generated requesters, install one with
+ * {@link Permissions#setBackend(PermissionBackend)}.
+ * <p>
+ * The permission-requester-android module has the one of Android and installs it when the app
+ * starts, an {@link InMemoryPermissionBackend} runs the requesters on a plain JVM.
+ */
+public interface PermissionBackend {
+
+    /**
+     * Result of a granted permission, the value of PackageManager.PERMISSION_GRANTED.
+     */
+    int GRANTED = 0;
+    /**
+     * Result of a denied permission, the value of PackageManager.PERMISSION_DENIED.
+     */
+    int DENIED = -1;
+
+    /**
+     * Check several permissions in one call.
+     *
+     * @param context the Context on Android
+     * @param permissions the permissions to check, must not be modified
+     * @param results receives {@link #GRANTED} or {@link #DENIED} for each permission, at the
+     *                same index
+     */
+    void check(Object context, String[] permissions, int[] results);
+
+    /**
+     * Ask the user for the permissions. The result is expected at the onRequestPermissionsResult
+     * of the host's requester.
+     *
+     * @param host the Activity or Fragment on Android
+     */
+    void request(Object host, String[] permissions, int requestCode);
+
+    /**
+     * @param host the Activity or Fragment on Android
+     * @return false while the host can not show a permission dialog, e.g. a stopped Activity
+     */
+    boolean isResumed(Object host);
+}
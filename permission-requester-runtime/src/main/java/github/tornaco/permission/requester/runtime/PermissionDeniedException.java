@@ -0,0 +1,20 @@
+package github.tornaco.permission.requester.runtime;
+
+/**
+ * Completes the future of an async request of a method with a result, when it was denied.
+ */
+public class PermissionDeniedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final GrantResult result;
+
+    public PermissionDeniedException(GrantResult result) {
+        super("Permission denied: " + result);
+        this.result = result;
+    }
+
+    public GrantResult getResult() {
+        return result;
+    }
+}
@@ -0,0 +1,128 @@
+package github.tornaco.permission.requester.runtime;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The installed {@link PermissionBackend}, and the permission checks the generated requesters
+ * share.
+ * <p>
+ * Permissions granted according to the {@link GrantStateCache} are not checked again, the others
+ * are checked in one batch. Every check goes to the cache, and so to the
+ * {@link GrantStatePublisher}.
+ */
+public class Permissions {
+
+    private static final AtomicReference<PermissionBackend> sBackend = new AtomicReference<>();
+
+    private Permissions() {
+    }
+
+    /**
+     * Install the backend, replacing the one installed.
+     */
+    public static void setBackend(PermissionBackend backend) {
+        sBackend.set(backend);
+    }
+
+    /**
+     * Install the backend, unless one is installed already.
+     *
+     * @return true if installed
+     */
+    public static boolean installIfAbsent(PermissionBackend backend) {
+        return sBackend.compareAndSet(null, backend);
+    }
+
+    /**
+     * @return true if a backend is installed
+     */
+    public static boolean isInstalled() {
+        return sBackend.get() != null;
+    }
+
+    /**
+     * @return the installed backend
+     * @throws IllegalStateException if none is installed
+     */
+    public static PermissionBackend backend() {
+        PermissionBackend backend = sBackend.get();
+        if (backend == null) {
+            throw new IllegalStateException("No PermissionBackend, add permission-requester-android"
+                    + " or call Permissions.setBackend() first");
+        }
+        return backend;
+    }
+
+    /**
+     * @return the permissions not granted yet, or null if all are granted
+     */
+    public static String[] missing(Object context, String[] permissions) {
+        int unknown = 0;
+        for (String permission : permissions) {
+            if (!GrantStateCache.isGranted(permission)) unknown++;
+        }
+        if (unknown == 0) return null;
+
+        String[] batch = permissions;
+        if (unknown < permissions.length) {
+            batch = new String[unknown];
+            int i = 0;
+            for (String permission : permissions) {
+                if (!GrantStateCache.isGranted(permission)) {
+                    batch[i++] = permission;
+                    if (i == unknown) break;
+                }
+            }
+            if (i < unknown) {
+                // Granted by another thread meanwhile.
+                batch = Arrays.copyOf(batch, i);
+            }
+        }
+
+        int generation = GrantStateCache.generation();
+        int[] results = new int[batch.length];
+        backend().check(context, batch, results);
+
+        String[] missing = null;
+        int count = 0;
+        for (int i = 0; i < batch.length; i++) {
+            String permission = batch[i];
+            if (results[i] == PermissionBackend.GRANTED) {
+                GrantStateCache.putGranted(permission, generation);
+                continue;
+            }
+            GrantStateCache.putDenied(permission);
+            if (missing == null) missing = new String[batch.length - i];
+            missing[count++] = permission;
+        }
+        if (missing == null || count == missing.length) return missing;
+        return Arrays.copyOf(missing, count);
+    }
+
+    /**
+     * Forget the cached grants and check every known permission again, call when a host resumes
+     * so subscribers of the {@link GrantStatePublisher} hear about revoked permissions.
+     */
+    public static void revalidate(Object context) {
+        GrantStateCache.invalidate();
+        String[] known = GrantStatePublisher.known();
+        if (known.length > 0) {
+            missing(context, known);
+        }
+    }
+
+    /**
+     * @return true if the backend says the host may show a permission dialog now
+     */
+    public static boolean isResumed(Object host) {
+        return backend().isResumed(host);
+    }
+
+    /**
+     * Ask the backend for the permissions.
+     */
+    public static void request(Object host, String[] permissions, int requestCode) {
+        backend().request(host, permissions, requestCode);
+    }
+}
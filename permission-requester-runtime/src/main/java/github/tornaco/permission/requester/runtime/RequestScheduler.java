@@ -0,0 +1,207 @@
+package github.tornaco.permission.requester.runtime;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Process wide queue of the permission requests of all generated requesters.
+ * <p>
+ * Android shows one permission dialog at a time and answers a request made while another one is
+ * showing with an empty result, as if it was cancelled. The requesters submit their requests here
+ * instead, and the next one is only launched when the result of the previous one arrives, in the
+ * order they were submitted. A request whose host is not resumed is deferred, requests of other
+ * hosts behind it go first. A request whose pending request was dropped meanwhile, e.g. when it
+ * expired, is dropped too, no result of it would reach anyone.
+ * <p>
+ * A request in flight whose host is gone, or whose result did not come within the
+ * {@link PendingRequests#setTimeToLive(long) time to live}, no longer blocks the queue. Deferred
+ * requests are retried on every submit and result, and on {@link #onResume()}.
+ * <p>
+ * The permissions of a request are checked again when it is launched, they may have been granted
+ * while it waited. Only the missing ones are asked for, and a request with none missing is
+ * completed as granted without a dialog.
+ * <p>
+ * Must be used on the main thread, where the requests are made and their results delivered.
+ */
+public class RequestScheduler {
+
+    private static final ArrayDeque<Ticket<?>> sQueue = new ArrayDeque<>();
+    private static Ticket<?> sInFlight;
+    // True while next() runs, the granted results it delivers call it again.
+    private static boolean sRunning;
+
+    private RequestScheduler() {
+    }
+
+    /**
+     * Launches the requests of one generated requester.
+     *
+     * @param <H> type of the host
+     */
+    public abstract static class Launcher<H> {
+
+        /**
+         * @return false to defer the request until the host is resumed, asks the installed
+         * {@link PermissionBackend} by default
+         */
+        protected boolean isResumed(H host) {
+            return Permissions.isResumed(host);
+        }
+
+        /**
+         * @return false to drop the request, the requester no longer waits for its result. True
+         * by default
+         */
+        protected boolean isPending(H host, int requestCode) {
+            return true;
+        }
+
+        /**
+         * Ask for the permissions, through the installed {@link PermissionBackend} by default.
+         */
+        protected void launch(H host, String[] permissions, int requestCode) {
+            Permissions.request(host, permissions, requestCode);
+        }
+
+        /**
+         * @return the context to check the permissions of the host with, the host by default
+         */
+        protected Object contextOf(H host) {
+            return host;
+        }
+
+        /**
+         * Complete a request whose permissions were all granted while it waited in the queue,
+         * by delivering a granted result to the requester.
+         *
+         * @return false to launch the request anyway, the default
+         */
+        protected boolean completeGranted(H host, String[] permissions, int requestCode) {
+            return false;
+        }
+    }
+
+    /**
+     * Queue a request, it is launched right away if no other request is in flight.
+     */
+    public static <H> void submit(Launcher<H> launcher, H host, String[] permissions, int requestCode) {
+        sQueue.addLast(new Ticket<>(launcher, host, permissions, requestCode));
+        next();
+    }
+
+    /**
+     * Tell about a result delivered to the requester of the launcher, so the next request can be
+     * launched.
+     */
+    public static void onResult(Launcher<?> launcher, int requestCode) {
+        Ticket<?> inFlight = sInFlight;
+        if (inFlight != null && inFlight.launcher == launcher && inFlight.requestCode == requestCode) {
+            sInFlight = null;
+        }
+        next();
+    }
+
+    /**
+     * Launch the requests deferred while their hosts were paused, call when a host resumes. Also
+     * drops the stale pending requests, see {@link PendingRequests#sweepAll()}.
+     */
+    public static void onResume() {
+        PendingRequests.sweepAll();
+        next();
+    }
+
+    /**
+     * @return number of requests waiting to be launched
+     */
+    public static int size() {
+        return sQueue.size();
+    }
+
+    private static void next() {
+        if (sRunning) return;
+        sRunning = true;
+        try {
+            while (!isBlocked()) {
+                Ticket<?> ticket = poll();
+                if (ticket == null) return;
+                launch(ticket);
+            }
+        } finally {
+            sRunning = false;
+        }
+    }
+
+    private static boolean isBlocked() {
+        Ticket<?> inFlight = sInFlight;
+        if (inFlight == null) return false;
+        // Compared by difference, nanoTime may overflow.
+        boolean expired = System.nanoTime() - inFlight.launchedAtNanos > PendingRequests.timeToLiveNanos();
+        if (inFlight.host.get() != null && !expired) return true;
+        // Its result will never come.
+        sInFlight = null;
+        return false;
+    }
+
+    /**
+     * @return the first request whose host is resumed, or null
+     */
+    private static Ticket<?> poll() {
+        for (Iterator<Ticket<?>> iterator = sQueue.iterator(); iterator.hasNext(); ) {
+            Ticket<?> ticket = iterator.next();
+            int state = ticket.state();
+            if (state == Ticket.PAUSED) continue;
+            iterator.remove();
+            if (state == Ticket.RESUMED) return ticket;
+            // The host is gone, its PendingRequests report the request.
+        }
+        return null;
+    }
+
+    private static <H> void launch(Ticket<H> ticket) {
+        H host = ticket.host.get();
+        if (host == null || !ticket.launcher.isPending(host, ticket.requestCode)) return;
+        String[] missing = Permissions.missing(ticket.launcher.contextOf(host), ticket.permissions);
+        if (missing == null) {
+            if (ticket.launcher.completeGranted(host, ticket.permissions, ticket.requestCode)) return;
+            missing = ticket.permissions;
+        }
+        sInFlight = ticket;
+        ticket.launchedAtNanos = System.nanoTime();
+        boolean launched = false;
+        try {
+            ticket.launcher.launch(host, missing, ticket.requestCode);
+            launched = true;
+        } finally {
+            if (!launched) {
+                sInFlight = null;
+            }
+        }
+    }
+
+    private static final class Ticket<H> {
+
+        static final int RESUMED = 0;
+        static final int PAUSED = 1;
+        static final int COLLECTED = 2;
+
+        final Launcher<H> launcher;
+        final WeakReference<H> host;
+        final String[] permissions;
+        final int requestCode;
+        long launchedAtNanos;
+
+        Ticket(Launcher<H> launcher, H host, String[] permissions, int requestCode) {
+            this.launcher = launcher;
+            this.host = new WeakReference<>(host);
+            this.permissions = permissions;
+            this.requestCode = requestCode;
+        }
+
+        int state() {
+            H host = this.host.get();
+            if (host == null) return COLLECTED;
+            return launcher.isResumed(host) ? RESUMED : PAUSED;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package github.tornaco.permission.requester.runtime;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Every {@link AsyncRequest} future completes, whatever happens to the request.
+ */
+public class AsyncRequestTest {
+
+    private static final int G = PermissionBackend.GRANTED;
+    private static final int D = PermissionBackend.DENIED;
+
+    private final Object host = new Object();
+    private final PendingRequests requests = new PendingRequests(AsyncRequestTest.class);
+
+    @After
+    public void tearDown() {
+        PendingRequests.setCapacity(PendingRequests.DEFAULT_CAPACITY);
+    }
+
+    @Test
+    public void grantedCompletesWithTheValue() throws Exception {
+        Request request = new Request(host);
+        requests.add(1, new String[]{"a"}, request);
+        requests.dispatch(1, new String[]{"a"}, new int[]{G}, G);
+        assertEquals("value", request.future().get());
+    }
+
+    @Test
+    public void deniedCompletesExceptionally() throws Exception {
+        Request request = new Request(host);
+        requests.add(1, new String[]{"a", "b"}, request);
+        requests.dispatch(1, new String[]{"a", "b"}, new int[]{G, D}, G);
+        try {
+            request.future().get();
+            fail();
+        } catch (ExecutionException e) {
+            PermissionDeniedException denied = (PermissionDeniedException) e.getCause();
+            assertEquals("b", denied.getResult().getDenied()[0]);
+        }
+    }
+
+    @Test
+    public void evictedIsCancelled() {
+        PendingRequests.setCapacity(1);
+        Request evicted = new Request(host);
+        requests.add(1, new String[]{"a"}, evicted);
+        requests.add(2, new String[]{"b"}, new Request(host));
+        assertCancelled(evicted.future());
+    }
+
+    @Test
+    public void expiredResultIsCancelled() {
+        Request request = new Request(host);
+        requests.add(1, new String[]{"a"}, request);
+        request.addedAtNanos -= PendingRequests.timeToLiveNanos() + 1;
+        requests.dispatch(1, new String[]{"a"}, new int[]{G}, G);
+        assertCancelled(request.future());
+    }
+
+    @Test
+    public void hostGoneBeforeTheExecutorRanIsCancelled() throws InterruptedException {
+        final List<Runnable> tasks = new ArrayList<>();
+        Object host = new Object();
+        WeakReference<Object> collected = new WeakReference<>(host);
+        Request request = new Request(host, new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                tasks.add(task);
+            }
+        });
+        requests.add(1, new String[]{"a"}, request);
+        requests.dispatch(1, new String[]{"a"}, new int[]{G}, G);
+
+        host = null;
+        for (int i = 0; i < 100 && collected.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        tasks.get(0).run();
+        assertCancelled(request.future());
+    }
+
+    private static void assertCancelled(CompletableFuture<?> future) {
+        assertTrue(future.isCompletedExceptionally());
+        try {
+            future.join();
+            fail();
+        } catch (CancellationException expected) {
+        }
+    }
+
+    private static final class Request extends AsyncRequest<Object, String> {
+
+        Request(Object host) {
+            this(host, null);
+        }
+
+        Request(Object host, Executor executor) {
+            super(host, executor);
+        }
+
+        @Override
+        protected String call(Object host) {
+            return "value";
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package github.tornaco.permission.requester.runtime;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Subscribers get the changes they asked for, conflated while they are not ready, and none after
+ * they cancelled.
+ */
+public class GrantStatePublisherTest {
+
+    // The publisher is process wide, each test has permissions of its own.
+    private static int sTest;
+
+    private final String prefix = "test" + (++sTest) + ".";
+    private final List<Recorder> recorders = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (Recorder recorder : recorders) {
+            recorder.subscription.cancel();
+        }
+    }
+
+    @Test
+    public void boundedDemandConflatesToTheLatestState() {
+        Recorder recorder = subscribe();
+        recorder.subscription.request(1);
+        publish("a", true);
+        assertEquals(Arrays.asList("a=true"), recorder.states);
+
+        // No demand, the subscriber is not ready.
+        publish("b", true);
+        publish("b", false);
+        publish("a", false);
+        publish("a", true);
+        assertEquals(1, recorder.states.size());
+
+        recorder.subscription.request(1);
+        // The latest of b, a flipped back to the state delivered already.
+        assertEquals(Arrays.asList("a=true", "b=false"), recorder.states);
+        recorder.subscription.request(5);
+        assertEquals(2, recorder.states.size());
+
+        publish("c", true);
+        publish("a", false);
+        assertEquals(Arrays.asList("a=true", "b=false", "c=true", "a=false"), recorder.states);
+    }
+
+    @Test
+    public void unchangedStatesAreDropped() {
+        Recorder recorder = subscribe();
+        recorder.subscription.request(Long.MAX_VALUE);
+        publish("a", true);
+        publish("a", true);
+        publish("b", false);
+        publish("b", false);
+        assertEquals(Arrays.asList("a=true", "b=false"), recorder.states);
+        assertTrue(Arrays.asList(GrantStatePublisher.known()).contains(prefix + "a"));
+
+        // Nothing changed since it subscribed.
+        Recorder late = subscribe();
+        late.subscription.request(Long.MAX_VALUE);
+        publish("a", true);
+        assertEquals(0, late.states.size());
+        publish("a", false);
+        assertEquals(Arrays.asList("a=false"), late.states);
+        assertEquals(Arrays.asList("a=true", "b=false", "a=false"), recorder.states);
+    }
+
+    @Test
+    public void cancelWhileDeliveringStopsTheRest() {
+        final Recorder recorder = new Recorder() {
+            @Override
+            public void onNext(GrantState state) {
+                super.onNext(state);
+                subscription.cancel();
+            }
+        };
+        recorders.add(recorder);
+        GrantStatePublisher.subscribe(recorder);
+        publish("a", true);
+        publish("b", true);
+        publish("c", true);
+
+        recorder.subscription.request(Long.MAX_VALUE);
+        assertEquals(Arrays.asList("a=true"), recorder.states);
+        publish("d", true);
+        recorder.subscription.request(1);
+        assertEquals(1, recorder.states.size());
+    }
+
+    private Recorder subscribe() {
+        Recorder recorder = new Recorder();
+        recorders.add(recorder);
+        GrantStatePublisher.subscribe(recorder);
+        return recorder;
+    }
+
+    private void publish(String permission, boolean granted) {
+        GrantStatePublisher.publish(prefix + permission, granted);
+    }
+
+    private class Recorder implements GrantStatePublisher.Subscriber {
+
+        final List<String> states = new ArrayList<>();
+        GrantStatePublisher.Subscription subscription;
+
+        @Override
+        public void onSubscribe(GrantStatePublisher.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(GrantState state) {
+            // Other tests publish too.
+            if (!state.getPermission().startsWith(prefix)) return;
+            states.add(state.getPermission().substring(prefix.length()) + "=" + state.isGranted());
+        }
+    }
+}
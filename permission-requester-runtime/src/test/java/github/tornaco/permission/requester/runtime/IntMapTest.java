@@ -0,0 +1,100 @@
+package github.tornaco.permission.requester.runtime;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link IntMap} must behave like a {@link HashMap} of boxed keys.
+ */
+public class IntMapTest {
+
+    @Test
+    public void putGetRemove() {
+        IntMap<String> map = new IntMap<>();
+        assertTrue(map.isEmpty());
+        assertNull(map.put(1, "a"));
+        assertEquals("a", map.put(1, "b"));
+        assertEquals("b", map.get(1));
+        assertTrue(map.containsKey(1));
+        assertFalse(map.containsKey(2));
+        assertEquals(1, map.size());
+        assertEquals("b", map.remove(1));
+        assertNull(map.remove(1));
+        assertNull(map.get(1));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void putNull() {
+        new IntMap<String>().put(1, null);
+    }
+
+    @Test
+    public void grow() {
+        IntMap<Integer> map = new IntMap<>(0);
+        int capacity = map.capacity();
+        for (int i = 0; i < 1000; i++) {
+            map.put(i << 16, i);
+        }
+        assertTrue(map.capacity() > capacity);
+        assertTrue(map.size() * 2 <= map.capacity());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(Integer.valueOf(i), map.get(i << 16));
+        }
+    }
+
+    @Test
+    public void clear() {
+        IntMap<String> map = new IntMap<>();
+        map.put(1, "a");
+        map.put(2, "b");
+        map.clear();
+        assertEquals(0, map.size());
+        assertNull(map.get(1));
+        map.put(1, "c");
+        assertEquals("c", map.get(1));
+    }
+
+    @Test
+    public void sameAsHashMap() {
+        // Few distinct keys sharing their upper bits, like request codes, so runs collide.
+        Random random = new Random(42);
+        IntMap<Integer> map = new IntMap<>();
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 100000; i++) {
+            int key = 0x7f000000 | random.nextInt(200);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                assertEquals(expected.put(key, i), map.put(key, i));
+            }
+            assertEquals(expected.size(), map.size());
+            if (i % 1000 == 0) {
+                assertContents(expected, map);
+            }
+        }
+        assertContents(expected, map);
+    }
+
+    private static void assertContents(Map<Integer, Integer> expected, IntMap<Integer> map) {
+        Map<Integer, Integer> actual = new HashMap<>();
+        for (int slot = 0; slot < map.capacity(); slot++) {
+            Integer value = map.valueAt(slot);
+            if (value != null) {
+                assertNull("Duplicate key " + map.keyAt(slot), actual.put(map.keyAt(slot), value));
+            }
+        }
+        assertEquals(expected, actual);
+        for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package github.tornaco.permission.requester.runtime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tasks posted from any thread run on the installed main thread, each once, in the order of
+ * posting.
+ */
+public class MainThreadTest {
+
+    private static final int THREADS = 4;
+    private static final int TASKS = 2000;
+
+    private ExecutorService main;
+    private Thread mainThread;
+
+    @Before
+    public void setUp() throws Exception {
+        main = Executors.newSingleThreadExecutor();
+        mainThread = main.submit(new Callable<Thread>() {
+            @Override
+            public Thread call() {
+                return Thread.currentThread();
+            }
+        }).get();
+        assertTrue(MainThread.installIfAbsent(mainThread, main));
+    }
+
+    @After
+    public void tearDown() {
+        MainThread.uninstall();
+        main.shutdownNow();
+    }
+
+    @Test
+    public void concurrentPostsRunOnceInOrderOnTheMainThread() throws Exception {
+        // Only touched on the main thread.
+        final List<int[]> ran = new ArrayList<>();
+        final List<Thread> wrongThreads = new ArrayList<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] posters = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int poster = t;
+            posters[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    for (int i = 0; i < TASKS; i++) {
+                        final int task = i;
+                        MainThread.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (!MainThread.isCurrent() || Thread.currentThread() != mainThread) {
+                                    wrongThreads.add(Thread.currentThread());
+                                }
+                                ran.add(new int[]{poster, task});
+                            }
+                        });
+                    }
+                }
+            });
+            posters[t].start();
+        }
+        start.countDown();
+        for (Thread poster : posters) {
+            poster.join();
+        }
+        // Every drain is queued on the main thread before the posters return.
+        main.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+
+        assertEquals(0, wrongThreads.size());
+        assertEquals(THREADS * TASKS, ran.size());
+        int[] next = new int[THREADS];
+        for (int[] task : ran) {
+            assertEquals(next[task[0]], task[1]);
+            next[task[0]]++;
+        }
+    }
+
+    @Test
+    public void executorRunsRightAwayOnTheMainThreadOnly() throws Exception {
+        final List<String> ran = new ArrayList<>();
+        assertFalse(MainThread.isCurrent());
+        main.submit(new Runnable() {
+            @Override
+            public void run() {
+                MainThread.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        ran.add("posted");
+                    }
+                });
+                MainThread.executor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        ran.add("executed");
+                    }
+                });
+            }
+        }).get();
+        main.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+        assertEquals("[executed, posted]", ran.toString());
+    }
+
+    @Test
+    public void withoutAMainThreadPostsRunRightAway() {
+        MainThread.uninstall();
+        final List<Thread> ran = new ArrayList<>();
+        assertTrue(MainThread.isCurrent());
+        MainThread.post(new Runnable() {
+            @Override
+            public void run() {
+                ran.add(Thread.currentThread());
+            }
+        });
+        assertEquals(1, ran.size());
+        assertTrue(ran.get(0) == Thread.currentThread());
+    }
+}
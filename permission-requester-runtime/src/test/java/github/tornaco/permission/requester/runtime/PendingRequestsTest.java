@@ -0,0 +1,185 @@
+package github.tornaco.permission.requester.runtime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Coalescing, expiry and eviction of the {@link PendingRequests} of one requester.
+ */
+public class PendingRequestsTest {
+
+    private static final int G = PermissionBackend.GRANTED;
+    private static final int D = PermissionBackend.DENIED;
+
+    private final Object host = new Object();
+    private final List<String> events = new ArrayList<>();
+    private PendingRequests requests;
+
+    @Before
+    public void setUp() {
+        requests = new PendingRequests(PendingRequestsTest.class);
+        PendingRequests.setEvictionListener(new EvictionListener() {
+            @Override
+            public void onEvicted(Class<?> requester, int requestCode, Reason reason) {
+                events.add("evicted " + requestCode + " " + reason);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        PendingRequests.setEvictionListener(null);
+        PendingRequests.setCapacity(PendingRequests.DEFAULT_CAPACITY);
+        PendingRequests.setTimeToLive(PendingRequests.DEFAULT_TIME_TO_LIVE_MILLIS);
+    }
+
+    @Test
+    public void coalescedRequestsShareTheResult() {
+        assertTrue(requests.add(1, new String[]{"a", "b"}, new Recording("first")));
+        assertFalse(requests.add(2, new String[]{"a"}, new Recording("covered")));
+        assertFalse(requests.add(3, new String[]{"b", "a"}, new Recording("same")));
+        // Not covered by the request in flight, so it is started.
+        assertTrue(requests.add(4, new String[]{"b", "c"}, new Recording("other")));
+        assertEquals(2, requests.size());
+
+        assertTrue(requests.dispatch(1, new String[]{"a", "b"}, new int[]{G, D}, G));
+        assertEquals(Arrays.asList(
+                "first partially [a] [b]",
+                "covered granted",
+                "same partially [a] [b]"), events);
+        assertEquals(1, requests.size());
+        // Delivered once only.
+        assertFalse(requests.dispatch(1, new String[]{"a", "b"}, new int[]{G, G}, G));
+        assertFalse(requests.dispatch(2, new String[]{"a"}, new int[]{G}, G));
+    }
+
+    @Test
+    public void permissionsNotRequestedCountAsGranted() {
+        requests.add(1, new String[]{"a", "b"}, new Recording("first"));
+        requests.dispatch(1, new String[]{"b"}, new int[]{G}, G);
+        assertEquals(Arrays.asList("first granted"), events);
+    }
+
+    @Test
+    public void cancelledRequestIsDenied() {
+        requests.add(1, new String[]{"a"}, new Recording("first"));
+        requests.add(2, new String[]{"a"}, new Recording("covered"));
+        requests.dispatch(1, new String[0], new int[0], G);
+        assertEquals(Arrays.asList("first denied", "covered denied"), events);
+    }
+
+    @Test
+    public void expiredRequestsAreEvicted() throws InterruptedException {
+        PendingRequests.setTimeToLive(1);
+        requests.add(1, new String[]{"a"}, new Recording("first"));
+        requests.add(2, new String[]{"a"}, new Recording("covered"));
+        Thread.sleep(10);
+
+        // The result of an expired request is dropped.
+        assertTrue(requests.dispatch(1, new String[]{"a"}, new int[]{G}, G));
+        assertEquals(Arrays.asList(
+                "first evicted EXPIRED", "evicted 1 EXPIRED",
+                "covered evicted EXPIRED", "evicted 1 EXPIRED"), events);
+
+        // A new request sweeps the expired ones.
+        events.clear();
+        requests.add(3, new String[]{"b"}, new Recording("stale"));
+        Thread.sleep(10);
+        assertTrue(requests.add(4, new String[]{"b"}, new Recording("fresh")));
+        assertEquals(Arrays.asList("stale evicted EXPIRED", "evicted 3 EXPIRED"), events);
+        assertEquals(1, requests.size());
+    }
+
+    @Test
+    public void resultsAndResumeSweepOtherRequests() throws InterruptedException {
+        PendingRequests.setTimeToLive(100);
+        requests.add(1, new String[]{"a"}, new Recording("stale"));
+        Thread.sleep(60);
+        requests.add(2, new String[]{"b"}, new Recording("fresh"));
+        Thread.sleep(60);
+
+        // The arguments of the stale request are released by the result of another one.
+        requests.dispatch(3, new String[]{"c"}, new int[]{G}, G);
+        assertEquals(Arrays.asList("stale evicted EXPIRED", "evicted 1 EXPIRED"), events);
+
+        // Sweeps the requests of every requester, those left by other tests too.
+        Thread.sleep(60);
+        RequestScheduler.onResume();
+        assertTrue(events.contains("fresh evicted EXPIRED"));
+        assertEquals(0, requests.size());
+    }
+
+    @Test
+    public void oldestRequestsMakeRoom() throws InterruptedException {
+        PendingRequests.setCapacity(2);
+        requests.add(1, new String[]{"a"}, new Recording("a"));
+        requests.add(5, new String[]{"a"}, new Recording("covered"));
+        Thread.sleep(1);
+        requests.add(2, new String[]{"b"}, new Recording("b"));
+        Thread.sleep(1);
+        requests.add(3, new String[]{"c"}, new Recording("c"));
+
+        assertEquals(2, requests.size());
+        assertEquals(Arrays.asList(
+                "a evicted CAPACITY", "evicted 1 CAPACITY",
+                "covered evicted CAPACITY", "evicted 1 CAPACITY"), events);
+        assertFalse(requests.dispatch(1, new String[]{"a"}, new int[]{G}, G));
+        assertTrue(requests.dispatch(2, new String[]{"b"}, new int[]{G}, G));
+        assertTrue(requests.dispatch(3, new String[]{"c"}, new int[]{G}, G));
+    }
+
+    @Test
+    public void onlyRequestsWaitingForTheirResultArePending() throws InterruptedException {
+        requests.add(1, new String[]{"a"}, new Recording("first"));
+        assertTrue(requests.isPending(1, host));
+        assertFalse(requests.isPending(1, new Object()));
+        assertFalse(requests.isPending(2, host));
+
+        requests.dispatch(1, new String[]{"a"}, new int[]{G}, G);
+        assertFalse(requests.isPending(1, host));
+
+        PendingRequests.setTimeToLive(1);
+        requests.add(3, new String[]{"b"}, new Recording("stale"));
+        Thread.sleep(10);
+        assertFalse(requests.isPending(3, host));
+    }
+
+    private final class Recording extends PendingRequest<Object> {
+
+        private final String name;
+
+        Recording(String name) {
+            super(host);
+            this.name = name;
+        }
+
+        @Override
+        public void onGranted(Object host) {
+            events.add(name + " granted");
+        }
+
+        @Override
+        public void onDenied(Object host) {
+            events.add(name + " denied");
+        }
+
+        @Override
+        public void onPartiallyGranted(Object host, String[] granted, String[] denied) {
+            events.add(name + " partially " + Arrays.toString(granted) + " " + Arrays.toString(denied));
+        }
+
+        @Override
+        void evicted(EvictionListener.Reason reason) {
+            events.add(name + " evicted " + reason);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package github.tornaco.permission.requester.runtime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A request from {@link Permissions#missing(Object, String[])} to its result on the
+ * {@link InMemoryPermissionBackend}, and the {@link GrantStateCache} in between.
+ */
+public class PermissionsTest {
+
+    private static final int G = PermissionBackend.GRANTED;
+
+    private final Object host = new Object();
+    private final List<String> events = new ArrayList<>();
+    private final CountingBackend backend = new CountingBackend();
+    private final PendingRequests requests = new PendingRequests(PermissionsTest.class);
+
+    @Before
+    public void setUp() {
+        Permissions.setBackend(backend);
+        GrantStateCache.invalidate();
+    }
+
+    @After
+    public void tearDown() {
+        assertNull(backend.poll());
+        Permissions.setBackend(null);
+        GrantStateCache.invalidate();
+    }
+
+    @Test
+    public void fullGrantIsCached() {
+        String[] permissions = {"a", "b"};
+        assertArrayEquals(permissions, request(permissions));
+
+        backend.grant("a", "b");
+        answer();
+        assertEquals(Arrays.asList("granted"), events);
+        assertTrue(GrantStateCache.isGranted("a"));
+        assertTrue(GrantStateCache.isGranted("b"));
+
+        // Known from the result, the backend is not asked.
+        backend.checks = 0;
+        assertNull(Permissions.missing(host, permissions));
+        assertEquals(0, backend.checks);
+    }
+
+    @Test
+    public void partialGrantCachesTheGrantedOnly() {
+        String[] permissions = {"a", "b"};
+        request(permissions);
+
+        backend.grant("a");
+        answer();
+        assertEquals(Arrays.asList("partially [a] [b]"), events);
+        assertTrue(GrantStateCache.isGranted("a"));
+        assertFalse(GrantStateCache.isGranted("b"));
+
+        // Only the denied one is checked again, and it still is.
+        backend.checks = 0;
+        assertArrayEquals(new String[]{"b"}, Permissions.missing(host, permissions));
+        assertEquals(Arrays.asList("b"), backend.checked);
+    }
+
+    @Test
+    public void grantedBeforeTheRequestCountsInAPartialResult() {
+        backend.grant("a");
+        String[] permissions = {"a", "b"};
+        // Only the missing one is asked for.
+        assertArrayEquals(new String[]{"b"}, request(permissions));
+
+        answer();
+        assertEquals(Arrays.asList("partially [a] [b]"), events);
+    }
+
+    @Test
+    public void invalidateForgetsTheGrants() {
+        backend.grant("a");
+        assertNull(Permissions.missing(host, new String[]{"a"}));
+
+        // Revoked in Settings, the cache still knows it granted.
+        backend.revoke("a");
+        assertNull(Permissions.missing(host, new String[]{"a"}));
+
+        int generation = GrantStateCache.generation();
+        GrantStateCache.invalidate();
+        assertEquals(generation + 1, GrantStateCache.generation());
+        assertArrayEquals(new String[]{"a"}, Permissions.missing(host, new String[]{"a"}));
+    }
+
+    @Test
+    public void checkRacingWithInvalidateIsNotCached() {
+        backend.grant("a");
+        backend.invalidateWhileChecking = true;
+        assertNull(Permissions.missing(host, new String[]{"a"}));
+        assertFalse(GrantStateCache.isGranted("a"));
+
+        backend.invalidateWhileChecking = false;
+        backend.checks = 0;
+        assertNull(Permissions.missing(host, new String[]{"a"}));
+        assertEquals(1, backend.checks);
+        assertTrue(GrantStateCache.isGranted("a"));
+    }
+
+    /**
+     * Like a generated requester: ask for the missing permissions only.
+     */
+    private String[] request(String[] permissions) {
+        String[] missing = Permissions.missing(host, permissions);
+        requests.add(1, permissions, new Recording());
+        Permissions.request(host, missing, 1);
+        return missing;
+    }
+
+    private void answer() {
+        InMemoryPermissionBackend.Request request = backend.poll();
+        GrantStateCache.onResult(request.getPermissions(), request.results(), G);
+        assertTrue(requests.dispatch(request.getRequestCode(), request.getPermissions(), request.results(), G));
+    }
+
+    private static final class CountingBackend extends InMemoryPermissionBackend {
+
+        final List<String> checked = new ArrayList<>();
+        int checks;
+        boolean invalidateWhileChecking;
+
+        @Override
+        public void check(Object context, String[] permissions, int[] results) {
+            checks++;
+            checked.clear();
+            checked.addAll(Arrays.asList(permissions));
+            super.check(context, permissions, results);
+            if (invalidateWhileChecking) {
+                GrantStateCache.invalidate();
+            }
+        }
+    }
+
+    private final class Recording extends PendingRequest<Object> {
+
+        Recording() {
+            super(host);
+        }
+
+        @Override
+        public void onGranted(Object host) {
+            events.add("granted");
+        }
+
+        @Override
+        public void onDenied(Object host) {
+            events.add("denied");
+        }
+
+        @Override
+        public void onPartiallyGranted(Object host, String[] granted, String[] denied) {
+            events.add("partially " + Arrays.toString(granted) + " " + Arrays.toString(denied));
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package github.tornaco.permission.requester.runtime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Order of the {@link RequestScheduler} queue and the results that unblock it. Every test leaves
+ * no request in flight, the queue is process wide.
+ */
+public class RequestSchedulerTest {
+
+    private final InMemoryPermissionBackend backend = new InMemoryPermissionBackend();
+    private final List<String> events = new ArrayList<>();
+    private final Recording launcher = new Recording();
+
+    @Before
+    public void setUp() {
+        Permissions.setBackend(backend);
+        GrantStateCache.invalidate();
+    }
+
+    @After
+    public void tearDown() {
+        assertEquals(0, RequestScheduler.size());
+        Permissions.setBackend(null);
+        GrantStateCache.invalidate();
+    }
+
+    @Test
+    public void oneRequestAtATimeInOrder() {
+        Host a = new Host("a");
+        Host b = new Host("b");
+        RequestScheduler.submit(launcher, a, new String[]{"x"}, 1);
+        RequestScheduler.submit(launcher, b, new String[]{"y"}, 2);
+        RequestScheduler.submit(launcher, a, new String[]{"z"}, 3);
+        assertEquals(Arrays.asList("launch a 1 [x]"), events);
+        assertEquals(2, RequestScheduler.size());
+
+        // Only the result of the request in flight unblocks the queue.
+        RequestScheduler.onResult(launcher, 2);
+        RequestScheduler.onResult(new Recording(), 1);
+        assertEquals(1, events.size());
+
+        RequestScheduler.onResult(launcher, 1);
+        RequestScheduler.onResult(launcher, 2);
+        RequestScheduler.onResult(launcher, 3);
+        assertEquals(Arrays.asList("launch a 1 [x]", "launch b 2 [y]", "launch a 3 [z]"), events);
+    }
+
+    @Test
+    public void pausedHostIsDeferred() {
+        Host paused = new Host("paused");
+        Host resumed = new Host("resumed");
+        paused.resumed = false;
+        RequestScheduler.submit(launcher, paused, new String[]{"x"}, 1);
+        RequestScheduler.submit(launcher, resumed, new String[]{"y"}, 2);
+        assertEquals(Arrays.asList("launch resumed 2 [y]"), events);
+
+        RequestScheduler.onResult(launcher, 2);
+        assertEquals(1, RequestScheduler.size());
+        paused.resumed = true;
+        RequestScheduler.onResume();
+        assertEquals(Arrays.asList("launch resumed 2 [y]", "launch paused 1 [x]"), events);
+        RequestScheduler.onResult(launcher, 1);
+    }
+
+    @Test
+    public void grantedMeanwhileCompletesWithoutLaunch() {
+        Host a = new Host("a");
+        RequestScheduler.submit(launcher, a, new String[]{"x"}, 1);
+        RequestScheduler.submit(launcher, a, new String[]{"y"}, 2);
+        RequestScheduler.submit(launcher, a, new String[]{"y", "z"}, 3);
+        backend.grant("y");
+
+        RequestScheduler.onResult(launcher, 1);
+        assertEquals(Arrays.asList("launch a 1 [x]", "granted a 2 [y]", "launch a 3 [z]"), events);
+        RequestScheduler.onResult(launcher, 3);
+    }
+
+    @Test
+    public void requestNoLongerPendingIsDropped() {
+        Host a = new Host("a");
+        RequestScheduler.submit(launcher, a, new String[]{"x"}, 1);
+        RequestScheduler.submit(launcher, a, new String[]{"y"}, 2);
+        RequestScheduler.submit(launcher, a, new String[]{"z"}, 3);
+        // Evicted while it waited.
+        a.dropped.add(2);
+
+        RequestScheduler.onResult(launcher, 1);
+        assertEquals(Arrays.asList("launch a 1 [x]", "launch a 3 [z]"), events);
+        RequestScheduler.onResult(launcher, 3);
+    }
+
+    private static final class Host {
+
+        final String name;
+        final Set<Integer> dropped = new HashSet<>();
+        boolean resumed = true;
+
+        Host(String name) {
+            this.name = name;
+        }
+    }
+
+    private final class Recording extends RequestScheduler.Launcher<Host> {
+
+        @Override
+        protected boolean isResumed(Host host) {
+            return host.resumed;
+        }
+
+        @Override
+        protected boolean isPending(Host host, int requestCode) {
+            return !host.dropped.contains(requestCode);
+        }
+
+        @Override
+        protected void launch(Host host, String[] permissions, int requestCode) {
+            events.add("launch " + host.name + " " + requestCode + " " + Arrays.toString(permissions));
+        }
+
+        @Override
+        protected boolean completeGranted(Host host, String[] permissions, int requestCode) {
+            events.add("granted " + host.name + " " + requestCode + " " + Arrays.toString(permissions));
+            // Like a requester delivering the result.
+            RequestScheduler.onResult(this, requestCode);
+            return true;
+        }
+    }
+}